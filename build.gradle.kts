@@ -191,6 +191,8 @@ subprojects {
         withType<KotlinCompile> {
             kotlinOptions {
                 jvmTarget = JavaVersion.VERSION_1_8.toString()
+                // @JvmDefault interface methods are compiled to Java default methods
+                freeCompilerArgs = freeCompilerArgs + "-Xjvm-default=enable"
             }
         }
         withType<Test> {
@@ -198,6 +200,9 @@ subprojects {
 
             maxParallelForks = 10
 
+            // benchmarks are enabled by -Dbenchmark=true passed to gradle, forward it to forked test JVMs
+            System.getProperty("benchmark")?.let { systemProperty("benchmark", it) }
+
             testLogging {
                 events(TestLogEvent.PASSED, TestLogEvent.FAILED, TestLogEvent.SKIPPED)
                 showStandardStreams = true
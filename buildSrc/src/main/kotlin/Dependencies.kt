@@ -8,8 +8,8 @@ object Vers {
     const val kotlin = "1.3.41"
     const val sl4j = "1.7.26"
     const val junit = "5.4.2"
-    const val curator_recipes = "4.3.0"
-    const val curator_test = "4.3.0"
+    const val curator_recipes = "5.1.0"
+    const val curator_test = "5.1.0"
     const val spring = "5.1.8.RELEASE"
     const val spring_boot_auto_configure = "2.1.5.RELEASE"
     const val jackson = "2.9.9"
@@ -72,6 +72,8 @@ object Libs {
     const val junit_engine = "org.junit.jupiter:junit-jupiter-engine:${Vers.junit}"
 
     const val jfix_zookeeper = "ru.fix:jfix-zookeeper:1.0.7"
+
+    const val h2 = "com.h2database:h2:1.4.200"
 }
 
 enum class Projs {
@@ -80,7 +82,9 @@ enum class Projs {
     `dynamic-property-zk`,
     `dynamic-property-spring`,
     `dynamic-property-polling`,
-    `dynamic-property-std-source`;
+    `dynamic-property-std-source`,
+    `dynamic-property-http`,
+    `dynamic-property-jdbc`;
 
     val dependency: String get() = ":$name"
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+plugins {
+    java
+    kotlin("jvm")
+}
+
+dependencies {
+
+    api(project(Projs.`dynamic-property-api`.dependency))
+
+    implementation(Libs.kotlin_stdlib)
+    implementation(Libs.kotlin_jdk8)
+    implementation(Libs.log4j_kotlin)
+    implementation(Libs.jackson_databind)
+    implementation(project(Projs.`dynamic-property-std-source`.dependency))
+
+    testImplementation(Libs.junit_api)
+    testRuntimeOnly(Libs.junit_engine)
+    testRuntimeOnly(Libs.slf4j_simple)
+    testImplementation(Libs.hamkrest)
+    testImplementation(Libs.awaitility)
+
+    testImplementation(project(Projs.`dynamic-property-jackson`.dependency))
+}
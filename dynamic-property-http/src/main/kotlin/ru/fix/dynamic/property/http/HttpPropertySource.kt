@@ -0,0 +1,162 @@
+package ru.fix.dynamic.property.http
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.apache.logging.log4j.kotlin.Logging
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.std.source.InMemoryPropertySource
+import ru.fix.stdlib.reference.ReferenceCleaner
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.time.Duration
+import kotlin.concurrent.thread
+
+/**
+ * Implementation of [DynamicPropertySource] that long-polls http config endpoint
+ * and applies only changed properties.
+ *
+ * Source sends last seen version of the config in `If-None-Match` header.
+ * Endpoint holds the request until config changes or until its own timeout expires.
+ * * `304 Not Modified` response means that there are no changes since given version.
+ * * `200 OK` response contains new version of the config in `ETag` header and delta in the body:
+ * ```
+ * {
+ *   "full": false,
+ *   "changed": { "my.service.rate": "12", "my.service.setting": { "timeout": 15 } },
+ *   "removed": [ "my.service.obsolete" ]
+ * }
+ * ```
+ * `full: true` means that `changed` contains whole config and all other properties should be removed.
+ * Request without `If-None-Match` header should be answered with the whole config.
+ *
+ * During initialization constructor will block until the first response is received.
+ * Then single daemon thread continues to poll the endpoint.
+ *
+ * @param url config endpoint
+ * @param initializationTimeout how long to wait for the first response
+ * @param pollTimeout how long to wait for a response during long-polling.
+ *                    Should be greater than the time endpoint holds the request.
+ * @param retryDelay delay between polling attempts after failure
+ */
+class HttpPropertySource(
+    private val url: URL,
+    marshaller: DynamicPropertyMarshaller,
+    initializationTimeout: Duration,
+    private val pollTimeout: Duration = Duration.ofMinutes(1),
+    private val retryDelay: Duration = Duration.ofSeconds(5),
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance()
+) : DynamicPropertySource {
+
+    companion object : Logging {
+        private val mapper = ObjectMapper()
+    }
+
+    private val inMemorySource = InMemoryPropertySource(marshaller, referenceCleaner)
+
+    /**
+     * Last seen version of the config. Accessed only by polling thread after initialization.
+     */
+    @Volatile
+    private var version: String? = null
+
+    @Volatile
+    private var closed = false
+
+    @Volatile
+    private var activeConnection: HttpURLConnection? = null
+
+    private val pollingThread: Thread
+
+    init {
+        try {
+            poll(initializationTimeout)
+        } catch (exc: Exception) {
+            inMemorySource.close()
+            throw HttpPropertySourceFailedToInitialize(url, exc)
+        }
+        pollingThread = thread(name = "http-property-source", isDaemon = true) {
+            pollUntilClosed()
+        }
+    }
+
+    private fun pollUntilClosed() {
+        while (!closed) {
+            try {
+                poll(pollTimeout)
+            } catch (exc: Exception) {
+                if (closed) {
+                    return
+                }
+                logger.warn("Failed to poll properties from $url. Retry in $retryDelay", exc)
+                try {
+                    Thread.sleep(retryDelay.toMillis())
+                } catch (interrupted: InterruptedException) {
+                    return
+                }
+            }
+        }
+    }
+
+    private fun poll(timeout: Duration) {
+        val connection = url.openConnection() as HttpURLConnection
+        activeConnection = connection
+        try {
+            connection.connectTimeout = timeout.toMillis().toInt()
+            connection.readTimeout = timeout.toMillis().toInt()
+            connection.setRequestProperty("Accept", "application/json")
+            version?.let { connection.setRequestProperty("If-None-Match", "\"$it\"") }
+
+            when (val responseCode = connection.responseCode) {
+                HttpURLConnection.HTTP_NOT_MODIFIED -> {
+                    logger.trace { "Config at $url is not modified since version $version" }
+                }
+                HttpURLConnection.HTTP_OK -> {
+                    val delta = connection.inputStream.use { mapper.readTree(it) }
+                    applyDelta(delta)
+                    version = connection.getHeaderField("ETag")?.trim('"')
+                    logger.debug { "Config at $url updated to version $version" }
+                }
+                else -> throw IOException("Unexpected response code $responseCode from $url")
+            }
+        } finally {
+            activeConnection = null
+        }
+    }
+
+    private fun applyDelta(delta: JsonNode) {
+        val changes = HashMap<String, String?>()
+        if (delta.path("full").asBoolean(false)) {
+            inMemorySource.propertyNames().toList().forEach { changes[it] = null }
+        }
+        delta.path("removed").forEach { changes[it.asText()] = null }
+        delta.path("changed").fields().forEach { (name, value) ->
+            changes[name] = if (value.isTextual) value.asText() else value.toString()
+        }
+        inMemorySource.update(changes)
+    }
+
+    override fun <T : Any?> createSubscription(
+        propertyName: String,
+        propertyType: Class<T>,
+        defaultValue: OptionalDefaultValue<T>
+    ): DynamicPropertySource.Subscription<T> =
+        inMemorySource.createSubscription(propertyName, propertyType, defaultValue)
+
+    override fun close() {
+        closed = true
+        pollingThread.interrupt()
+        activeConnection?.disconnect()
+        inMemorySource.close()
+    }
+}
+
+class HttpPropertySourceFailedToInitialize(
+    url: URL,
+    cause: Exception
+) : java.lang.Exception(
+    "HttpPropertySource failed to load properties from $url",
+    cause
+)
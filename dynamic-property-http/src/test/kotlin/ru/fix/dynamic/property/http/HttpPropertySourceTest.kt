@@ -0,0 +1,142 @@
+package ru.fix.dynamic.property.http
+
+import com.natpryce.hamkrest.assertion.assertThat
+import com.natpryce.hamkrest.equalTo
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import java.net.InetSocketAddress
+import java.net.URL
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.collections.ArrayList
+import kotlin.concurrent.withLock
+
+class HttpPropertySourceTest {
+
+    /**
+     * Keeps history of config changes and answers with delta since the version requested by the client
+     */
+    private class ConfigServer {
+        private val lock = ReentrantLock()
+        private val changed = lock.newCondition()
+        private val history = ArrayList<Map<String, String?>>()
+        val requestedVersions: MutableList<String?> = Collections.synchronizedList(ArrayList<String?>())
+
+        private val server = HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+            createContext("/config") { exchange -> handle(exchange) }
+            start()
+        }
+
+        val url = URL("http://localhost:${server.address.port}/config")
+
+        fun publish(changes: Map<String, String?>) = lock.withLock {
+            history.add(changes)
+            changed.signalAll()
+        }
+
+        private fun handle(exchange: HttpExchange) {
+            val clientVersion = exchange.requestHeaders.getFirst("If-None-Match")?.trim('"')
+            requestedVersions.add(clientVersion)
+
+            val (version, delta) = lock.withLock {
+                val from = clientVersion?.toInt() ?: 0
+                if (history.size == from) {
+                    changed.await(200, TimeUnit.MILLISECONDS)
+                }
+                history.size to history.drop(from).fold(HashMap<String, String?>()) { acc, changes ->
+                    acc.apply { putAll(changes) }
+                }
+            }
+
+            if (delta.isEmpty() && clientVersion != null) {
+                exchange.sendResponseHeaders(304, -1)
+                exchange.close()
+                return
+            }
+
+            val changedJson = delta.filterValues { it != null }.entries
+                .joinToString(",") { "\"${it.key}\":\"${it.value}\"" }
+            val removedJson = delta.filterValues { it == null }.keys
+                .joinToString(",") { "\"$it\"" }
+            val body = "{\"full\":${clientVersion == null},\"changed\":{$changedJson},\"removed\":[$removedJson]}"
+                .toByteArray(StandardCharsets.UTF_8)
+
+            exchange.responseHeaders.add("ETag", "\"$version\"")
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+
+        fun close() {
+            server.stop(0)
+        }
+    }
+
+    private lateinit var server: ConfigServer
+
+    @BeforeEach
+    fun beforeEach() {
+        server = ConfigServer()
+    }
+
+    @AfterEach
+    fun afterEach() {
+        server.close()
+    }
+
+    @Test
+    fun `load initial config and apply only changed properties`() {
+        server.publish(mapOf("host" to "localhost", "port" to "8080"))
+
+        val source = HttpPropertySource(
+            server.url,
+            MarshallerBuilder.createDefault(),
+            initializationTimeout = Duration.ofSeconds(10),
+            pollTimeout = Duration.ofSeconds(10)
+        )
+
+        val port = SourcedProperty(source, "port", Integer::class.java, OptionalDefaultValue.none())
+        assertThat(port.get().toInt(), equalTo(8080))
+
+        val hosts = Collections.synchronizedList(ArrayList<String>())
+        val hostSubscription = source.createSubscription(
+            "host",
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { hosts.add(it!!) }
+
+        server.publish(mapOf("port" to "9090"))
+        await().atMost(10, TimeUnit.SECONDS).until { port.get().toInt() == 9090 }
+        assertThat(hosts, equalTo(listOf("localhost")))
+
+        server.publish(mapOf("host" to null))
+        await().atMost(10, TimeUnit.SECONDS).until { hosts == listOf("localhost", "default") }
+
+        assertThat(server.requestedVersions.first(), equalTo<String?>(null))
+        assertThat(server.requestedVersions.contains("2"), equalTo(true))
+
+        hostSubscription.close()
+        source.close()
+    }
+
+    @Test
+    fun `fail to initialize when endpoint is not available`() {
+        server.close()
+        var failed = false
+        try {
+            HttpPropertySource(server.url, MarshallerBuilder.createDefault(), Duration.ofSeconds(1))
+        } catch (exc: HttpPropertySourceFailedToInitialize) {
+            failed = true
+        }
+        assertThat(failed, equalTo(true))
+    }
+}
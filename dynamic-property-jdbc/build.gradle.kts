@@ -0,0 +1,26 @@
+plugins {
+    java
+    kotlin("jvm")
+}
+
+dependencies {
+
+    api(project(Projs.`dynamic-property-api`.dependency))
+    api(Libs.jfix_stdlib_concurrency) {
+        exclude("ru.fix", "dynamic-property-api")
+    }
+
+    implementation(Libs.kotlin_stdlib)
+    implementation(Libs.kotlin_jdk8)
+    implementation(Libs.log4j_kotlin)
+    implementation(project(Projs.`dynamic-property-std-source`.dependency))
+
+    testImplementation(Libs.junit_api)
+    testRuntimeOnly(Libs.junit_engine)
+    testRuntimeOnly(Libs.slf4j_simple)
+    testImplementation(Libs.hamkrest)
+    testImplementation(Libs.mockk)
+    testImplementation(Libs.h2)
+
+    testImplementation(project(Projs.`dynamic-property-jackson`.dependency))
+}
@@ -0,0 +1,153 @@
+package ru.fix.dynamic.property.jdbc
+
+import org.apache.logging.log4j.kotlin.Logging
+import ru.fix.dynamic.property.api.DynamicProperty
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.std.source.InMemoryPropertySource
+import ru.fix.stdlib.concurrency.threads.ReschedulableScheduler
+import ru.fix.stdlib.concurrency.threads.Schedule
+import ru.fix.stdlib.reference.ReferenceCleaner
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import javax.sql.DataSource
+
+/**
+ * Implementation of [DynamicPropertySource] that reads properties from relational table
+ * and detects changes through monotonically increasing revision column.
+ * ```
+ * CREATE TABLE dynamic_property (
+ *     name     VARCHAR(255) PRIMARY KEY,
+ *     value    CLOB,             -- null value means that property is removed
+ *     revision BIGINT NOT NULL   -- unique value, increased on each insert, update or removal of the property
+ * )
+ * ```
+ * Each poll fetches rows with revision greater than the last seen one minus [revisionLag], in batches of [batchSize] rows.
+ * Revisions are allocated before commit, so transaction that got lower revision could commit
+ * after rows with greater revisions were already polled. Such row is still found by the next poll
+ * if no more than [revisionLag] revisions were allocated between its revision and the greatest polled one.
+ * Writers that could stay uncommitted longer should be serialized, e.g. by single writer.
+ * Rows of the lag window that were already seen with the same revision are not published again.
+ * All changes fetched during poll are published to subscribers as one batch.
+ *
+ * During initialization constructor will block until all properties are loaded from the table.
+ * Then [scheduler] regularly polls the table according to [pollingSchedule].
+ * Source owns the [scheduler] and shuts it down on [close].
+ *
+ * @param tableName table with `name`, `value` and `revision` columns
+ * @param batchSize how many rows to fetch by single query
+ * @param shutdownTimeout how long [close] will wait for polling process to stop
+ * @param revisionLag how many revisions before the last seen one are fetched again by each poll
+ */
+class JdbcPropertySource(
+    private val dataSource: DataSource,
+    tableName: String,
+    marshaller: DynamicPropertyMarshaller,
+    private val scheduler: ReschedulableScheduler,
+    pollingSchedule: DynamicProperty<Schedule>,
+    private val batchSize: Int = 1000,
+    private val shutdownTimeout: Duration = Duration.ofMinutes(1),
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance(),
+    private val revisionLag: Long = DEFAULT_REVISION_LAG
+) : DynamicPropertySource {
+
+    companion object : Logging {
+        const val DEFAULT_REVISION_LAG = 1000L
+    }
+
+    private val selectChangesQuery =
+        "SELECT name, value, revision FROM $tableName WHERE revision > ? ORDER BY revision"
+
+    private val inMemorySource = InMemoryPropertySource(marshaller, referenceCleaner)
+
+    private val pollLock = Any()
+
+    /**
+     * Guarded by [pollLock]
+     */
+    private var lastSeenRevision = Long.MIN_VALUE
+
+    /**
+     * Revisions of fetched rows by property names. Guarded by [pollLock]
+     */
+    private val seenRevisions = HashMap<String, Long>()
+
+    init {
+        require(batchSize > 0) { "Batch size should be positive: $batchSize" }
+        require(revisionLag >= 0) { "Revision lag should not be negative: $revisionLag" }
+        try {
+            poll()
+        } catch (exc: Exception) {
+            scheduler.shutdownNow()
+            inMemorySource.close()
+            throw exc
+        }
+        scheduler.schedule(pollingSchedule, 0) {
+            try {
+                poll()
+            } catch (exc: Exception) {
+                logger.error("Failed to poll properties from $tableName", exc)
+            }
+        }
+    }
+
+    private fun poll() = synchronized(pollLock) {
+        val changes = LinkedHashMap<String, String?>()
+        val fetchedRevisions = HashMap<String, Long>()
+        var revision = if (lastSeenRevision < Long.MIN_VALUE + revisionLag)
+            Long.MIN_VALUE
+        else
+            lastSeenRevision - revisionLag
+
+        dataSource.connection.use { connection ->
+            connection.prepareStatement(selectChangesQuery).use { statement ->
+                statement.maxRows = batchSize
+                statement.fetchSize = batchSize
+                do {
+                    statement.setLong(1, revision)
+                    var fetchedRows = 0
+                    statement.executeQuery().use { resultSet ->
+                        while (resultSet.next()) {
+                            fetchedRows++
+                            val name = resultSet.getString(1)
+                            revision = resultSet.getLong(3)
+                            if (seenRevisions[name] != revision) {
+                                changes[name] = resultSet.getString(2)
+                                fetchedRevisions[name] = revision
+                            }
+                        }
+                    }
+                } while (fetchedRows == batchSize)
+            }
+        }
+
+        if (changes.isNotEmpty()) {
+            logger.debug { "Fetched ${changes.size} changed properties up to revision $revision" }
+            inMemorySource.update(changes)
+        }
+        // state is advanced only after changes are published, so changes of a failed poll are fetched again
+        seenRevisions.putAll(fetchedRevisions)
+        lastSeenRevision = maxOf(lastSeenRevision, revision)
+    }
+
+    override fun <T : Any?> createSubscription(
+        propertyName: String,
+        propertyType: Class<T>,
+        defaultValue: OptionalDefaultValue<T>
+    ): DynamicPropertySource.Subscription<T> =
+        inMemorySource.createSubscription(propertyName, propertyType, defaultValue)
+
+    override fun close() {
+        scheduler.shutdown()
+        try {
+            if (!scheduler.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.error("Failed to await termination for $shutdownTimeout")
+                scheduler.shutdownNow()
+            }
+        } catch (exc: InterruptedException) {
+            logger.error("Failed to properly close jdbc property source", exc)
+        }
+        inMemorySource.close()
+    }
+}
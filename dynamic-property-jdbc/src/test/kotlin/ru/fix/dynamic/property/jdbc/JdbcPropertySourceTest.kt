@@ -0,0 +1,134 @@
+package ru.fix.dynamic.property.jdbc
+
+import com.natpryce.hamkrest.assertion.assertThat
+import com.natpryce.hamkrest.equalTo
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import org.h2.jdbcx.JdbcDataSource
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.DynamicProperty
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.stdlib.concurrency.threads.ReschedulableScheduler
+import ru.fix.stdlib.concurrency.threads.Schedule
+import java.util.*
+import kotlin.collections.ArrayList
+
+class JdbcPropertySourceTest {
+
+    private val dataSource = JdbcDataSource().apply {
+        setURL("jdbc:h2:mem:${UUID.randomUUID()};DB_CLOSE_DELAY=-1")
+    }
+
+    private var revision = 0L
+
+    private val scheduler = mockk<ReschedulableScheduler>(relaxed = true)
+    private val pollingTask = slot<Runnable>()
+
+    @BeforeEach
+    fun beforeEach() {
+        every {
+            scheduler.schedule(any(), ofType(Long::class), capture(pollingTask))
+        } returns mockk()
+
+        execute("CREATE TABLE dynamic_property (name VARCHAR(255) PRIMARY KEY, value CLOB, revision BIGINT NOT NULL)")
+    }
+
+    @AfterEach
+    fun afterEach() {
+        execute("DROP TABLE dynamic_property")
+    }
+
+    @Test
+    fun `load all properties in batches and then fetch only changed ones`() {
+        (1..5).forEach { setProperty("prop-$it", "value-$it") }
+
+        val source = JdbcPropertySource(
+            dataSource,
+            "dynamic_property",
+            MarshallerBuilder.createDefault(),
+            scheduler,
+            DynamicProperty.of(Schedule.withRate(1000L)),
+            batchSize = 2
+        )
+
+        val properties = (1..5).map {
+            SourcedProperty(source, "prop-$it", String::class.java, OptionalDefaultValue.of("default"))
+        }
+        assertThat(properties.map { it.get() }, equalTo((1..5).map { "value-$it" }))
+
+        val values = Collections.synchronizedList(ArrayList<String>())
+        val subscription = source.createSubscription(
+            "prop-1",
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { values.add(it!!) }
+
+        setProperty("prop-2", "new-value-2")
+        setProperty("prop-2", "latest-value-2")
+        removeProperty("prop-3")
+        pollingTask.captured.run()
+
+        assertThat(properties.map { it.get() }, equalTo(listOf(
+            "value-1", "latest-value-2", "default", "value-4", "value-5"
+        )))
+        assertThat(values, equalTo(listOf("value-1")))
+
+        pollingTask.captured.run()
+        assertThat(values, equalTo(listOf("value-1")))
+
+        subscription.close()
+        source.close()
+    }
+
+    @Test
+    fun `row committed after rows with greater revisions is fetched by the next poll`() {
+        setProperty("prop-1", "value-1")
+        // revision 2 is allocated by transaction that is not committed yet
+        revision++
+        setProperty("prop-3", "value-3")
+
+        val source = JdbcPropertySource(
+            dataSource,
+            "dynamic_property",
+            MarshallerBuilder.createDefault(),
+            scheduler,
+            DynamicProperty.of(Schedule.withRate(1000L))
+        )
+        val property = SourcedProperty(source, "prop-2", String::class.java, OptionalDefaultValue.of("default"))
+        val values = Collections.synchronizedList(ArrayList<String>())
+        val subscription = source.createSubscription(
+            "prop-3",
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { values.add(it!!) }
+        assertThat(property.get(), equalTo("default"))
+
+        execute("INSERT INTO dynamic_property (name, value, revision) VALUES ('prop-2', 'value-2', 2)")
+        pollingTask.captured.run()
+
+        assertThat(property.get(), equalTo("value-2"))
+        assertThat(values, equalTo(listOf("value-3")))
+
+        subscription.close()
+        source.close()
+    }
+
+    private fun setProperty(name: String, value: String) {
+        execute("MERGE INTO dynamic_property (name, value, revision) VALUES ('$name', '$value', ${++revision})")
+    }
+
+    private fun removeProperty(name: String) {
+        execute("UPDATE dynamic_property SET value = NULL, revision = ${++revision} WHERE name = '$name'")
+    }
+
+    private fun execute(sql: String) {
+        dataSource.connection.use { connection ->
+            connection.createStatement().use { it.execute(sql) }
+        }
+    }
+}
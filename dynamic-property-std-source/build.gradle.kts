@@ -7,7 +7,7 @@ dependencies {
 
     implementation(Libs.kotlin_stdlib)
     implementation(Libs.kotlin_jdk8)
-    implementation(Libs.jfix_stdlib_concurrency) {
+    api(Libs.jfix_stdlib_concurrency) {
         exclude("ru.fix", "dynamic-property-api")
     }
     implementation(Libs.jfix_stdlib_files) {
@@ -25,6 +25,7 @@ dependencies {
 
     testImplementation(Libs.hamkrest)
     testImplementation(Libs.awaitility)
+    testImplementation(Libs.mockk)
 
     testImplementation(project(Projs.`dynamic-property-jackson`.dependency))
 }
@@ -0,0 +1,169 @@
+package ru.fix.dynamic.property.std.source
+
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.stdlib.reference.ReferenceCleaner
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Layers several [DynamicPropertySource]s by priority.
+ * Layers are listed in order of increasing priority: value from the last layer that defines the property wins.
+ * ```
+ * CompositePropertySource(listOf(defaults, fileSource, zkSource, emergencyOverrides), marshaller)
+ * ```
+ * Composite subscribes to each layer only once per property name and keeps resolved winner value for the property.
+ * Winner is updated incrementally when one of the layers changes the property.
+ * Subscribers are notified only when the effective value of the property changes.
+ * When the last subscriber of the property goes away, composite closes its layer subscriptions
+ * and forgets resolved value of the property.
+ *
+ * Composite never calls layers or subscribers while it holds its own lock:
+ * layers are subscribed and released outside of the lock and subscribers are notified after the lock is released,
+ * so subscriber that subscribes to another property of the composite could not deadlock with layer notification.
+ * Values passed to subscribers are ordered by versions, see [VersionedPropertySourceAccessor].
+ *
+ * Layers are subscribed with [String] property type,
+ * so layer marshallers should return raw string values as is.
+ * Composite does not close layers, they stay under control of the caller.
+ */
+class CompositePropertySource(
+    layers: List<DynamicPropertySource>,
+    marshaller: DynamicPropertyMarshaller,
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance()
+) : DynamicPropertySource {
+
+    private val layers = layers.toList()
+
+    private val resolveAndNotifyLock = ReentrantLock()
+
+    private val resolvedProperties = ConcurrentHashMap<String, ResolvedProperty>()
+
+    /**
+     * Version of the last winner change or read. Guarded by [resolveAndNotifyLock]
+     */
+    private var lastVersion = 0L
+
+    private val propertySourcePublisher = PropertySourcePublisher(
+        propertySourceAccessor = object : VersionedPropertySourceAccessor {
+            override fun accessPropertyUnderLock(propertyName: String, accessor: (String?) -> Unit) {
+                // not used by publisher for versioned accessor, layers could not be subscribed under the lock
+                accessor(readVersionedProperty(propertyName).value)
+            }
+
+            override fun readVersionedProperty(propertyName: String): VersionedPropertyValue {
+                while (true) {
+                    val resolvedProperty = resolve(propertyName)
+                    resolveAndNotifyLock.withLock {
+                        // property could be released concurrently before its value is read
+                        if (resolvedProperties[propertyName] === resolvedProperty) {
+                            return VersionedPropertyValue(resolvedProperty.winner, ++lastVersion)
+                        }
+                    }
+                }
+            }
+
+            override fun onPropertyUnsubscribed(propertyName: String) {
+                val released = resolveAndNotifyLock.withLock {
+                    if (propertySourcePublisher.hasSubscriptions(propertyName)) {
+                        return
+                    }
+                    resolvedProperties.remove(propertyName)
+                } ?: return
+                // layers are closed outside of the lock, since they could take their own locks on close.
+                // Subscribers are notified outside of the lock too, so pruning of their subscriptions never holds it.
+                released.close()
+            }
+        },
+        marshaller = marshaller,
+        referenceCleaner = referenceCleaner
+    )
+
+    private inner class ResolvedProperty(val propertyName: String) {
+        /**
+         * Raw values of the property in each layer. Guarded by [resolveAndNotifyLock]
+         */
+        private val layerValues = arrayOfNulls<String>(layers.size)
+
+        /**
+         * Effective value of the property. Guarded by [resolveAndNotifyLock]
+         */
+        var winner: String? = null
+            private set
+
+        private val layerSubscriptions = ArrayList<DynamicPropertySource.Subscription<String>>(layers.size)
+
+        @Volatile
+        private var subscribed = false
+
+        /**
+         * Guarded by this
+         */
+        private var closed = false
+
+        fun subscribeToLayersOnce() {
+            if (subscribed) return
+            synchronized(this) {
+                if (subscribed || closed) return
+                layers.forEachIndexed { layerIndex, layer ->
+                    val subscription = layer.createSubscription(
+                        propertyName,
+                        String::class.java,
+                        OptionalDefaultValue.of<String>(null)
+                    )
+                    subscription.setAndCallListener { newValue -> onLayerChanged(layerIndex, newValue) }
+                    layerSubscriptions.add(subscription)
+                }
+                subscribed = true
+            }
+        }
+
+        private fun onLayerChanged(layerIndex: Int, newValue: String?) {
+            val newWinner = resolveAndNotifyLock.withLock {
+                layerValues[layerIndex] = newValue
+                val newWinner = layerValues.lastOrNull { it != null }
+                if (newWinner == winner) {
+                    return
+                }
+                winner = newWinner
+                // winners that appear while layers are subscribed one by one are read by the first subscription
+                if (!subscribed) {
+                    return
+                }
+                VersionedPropertyValue(newWinner, ++lastVersion)
+            }
+            propertySourcePublisher.notifyAboutVersionedPropertyChange(propertyName, newWinner)
+        }
+
+        fun close() {
+            synchronized(this) {
+                closed = true
+                layerSubscriptions.forEach { it.close() }
+                layerSubscriptions.clear()
+            }
+        }
+    }
+
+    private fun resolve(propertyName: String): ResolvedProperty {
+        val resolvedProperty = resolvedProperties.computeIfAbsent(propertyName) { ResolvedProperty(it) }
+        resolvedProperty.subscribeToLayersOnce()
+        return resolvedProperty
+    }
+
+    internal fun resolvedPropertyNames(): Set<String> = resolvedProperties.keys
+
+    override fun <T : Any?> createSubscription(
+        propertyName: String,
+        propertyType: Class<T>,
+        defaultValue: OptionalDefaultValue<T>
+    ): DynamicPropertySource.Subscription<T> =
+        propertySourcePublisher.createSubscription(propertyName, propertyType, defaultValue)
+
+    override fun close() {
+        propertySourcePublisher.close()
+        resolvedProperties.values.forEach { it.close() }
+        resolvedProperties.clear()
+    }
+}
@@ -0,0 +1,259 @@
+package ru.fix.dynamic.property.std.source
+
+import org.apache.logging.log4j.kotlin.Logging
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.stdlib.reference.ReferenceCleaner
+import java.nio.ByteBuffer
+import java.nio.charset.CharacterCodingException
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.StandardCharsets
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchService
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
+
+/**
+ * Load properties from directory where each regular file is a property:
+ * file name is the property name and file content is the property value.
+ * Files and directories which names start with `.` are ignored.
+ *
+ * Directory is watched for modifications. Each modification rescans the directory,
+ * but reads only files that were changed: digest of the file is computed if its attributes changed,
+ * and its value is read only if the digest differs from the digest of the last read content.
+ * Value that is not valid UTF-8 is not applied, previously loaded value is kept instead.
+ * Attributes of the file modified less than two seconds before the scan are not trusted,
+ * since file rewritten with the same size within one tick of coarse file system timestamps keeps its attributes,
+ * such file is read again by the next scan.
+ * All changes found by the rescan are applied as one batch.
+ * If a file of the `..data` snapshot or the snapshot itself vanishes while it is read, the directory is rescanned.
+ * If the directory itself becomes inaccessible, it is no longer watched and loaded properties are kept.
+ *
+ * Supports layout of Kubernetes ConfigMap volumes, where files are symlinks to `..data/<name>`
+ * and `..data` is a symlink to a directory with actual files, that is atomically swapped on update.
+ * If `..data` exists, the whole snapshot is read from the directory `..data` points to,
+ * so the swap is applied as one batch and files of different snapshots are never mixed.
+ */
+class DirectoryPropertySource(
+    private val directory: Path,
+    marshaller: DynamicPropertyMarshaller,
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance()
+) : DynamicPropertySource {
+
+    companion object : Logging {
+        const val DATA_LINK = "..data"
+        private const val MAX_SCAN_ATTEMPTS = 3
+
+        /**
+         * Coarsest modification time resolution of common file systems
+         */
+        private const val MODIFIED_TIME_GRANULARITY_MILLIS = 2000L
+    }
+
+    /**
+     * @param attributes attributes of the file at the moment it was read, null if they are not trusted
+     */
+    private class LoadedFile(
+        val attributes: Attributes?,
+        val digest: ByteArray,
+        val value: String
+    )
+
+    private data class Attributes(
+        val fileKey: Any?,
+        val size: Long,
+        val lastModifiedMillis: Long
+    )
+
+    private val inMemorySource = InMemoryPropertySource(marshaller, referenceCleaner)
+
+    /**
+     * Files of the last applied scan by property names. Guarded by this.
+     */
+    private val loadedFiles = HashMap<String, LoadedFile>()
+
+    private val watchService: WatchService = directory.fileSystem.newWatchService()
+
+    private val watcherThread = Thread({ watch() }, "directory-property-source-$directory").apply { isDaemon = true }
+
+    init {
+        directory.register(
+            watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE
+        )
+        updateProperties()
+        watcherThread.start()
+    }
+
+    private fun watch() {
+        try {
+            while (true) {
+                val key = watchService.take()
+                // all events that already arrived are handled by single rescan
+                key.pollEvents()
+                val isValid = key.reset()
+                try {
+                    updateProperties()
+                } catch (exc: Exception) {
+                    logger.error("Failed to update properties from directory $directory", exc)
+                }
+                if (!isValid) {
+                    logger.error(
+                        "Directory $directory is no longer accessible, stop watching it" +
+                                " and keep previously loaded properties"
+                    )
+                    return
+                }
+            }
+        } catch (exc: ClosedWatchServiceException) {
+            // source is closed
+        } catch (exc: InterruptedException) {
+            // source is closed
+        }
+    }
+
+    /**
+     * Rescans the directory until the scan is not interrupted by a file or snapshot that vanished while it was read.
+     * Scanned state replaces [loadedFiles] only after its changes are applied,
+     * so changes of a failed scan are found again by the next one.
+     */
+    @Synchronized
+    private fun updateProperties() {
+        repeat(MAX_SCAN_ATTEMPTS) {
+            val snapshotDirectory = resolveSnapshotDirectory()
+            if (snapshotDirectory == null) {
+                logger.warn { "Link $DATA_LINK in directory $directory points to nothing, wait for the next update" }
+                return
+            }
+            val scannedFiles = try {
+                scan(snapshotDirectory, isSnapshot = snapshotDirectory != directory)
+            } catch (exc: NoSuchFileException) {
+                logger.debug { "File ${exc.file} vanished during scan of directory $directory, rescan it" }
+                return@repeat
+            }
+            val changes = HashMap<String, String?>()
+            scannedFiles.forEach { (name, file) ->
+                if (loadedFiles[name]?.value != file.value) {
+                    changes[name] = file.value
+                }
+            }
+            loadedFiles.keys
+                .filter { it !in scannedFiles }
+                .forEach { changes[it] = null }
+
+            if (changes.isNotEmpty()) {
+                logger.debug { "Properties ${changes.keys} changed in directory $directory" }
+                inMemorySource.update(changes)
+            }
+            loadedFiles.clear()
+            loadedFiles.putAll(scannedFiles)
+            return
+        }
+        logger.warn { "Directory $directory keeps changing during scan, wait for the next update" }
+    }
+
+    /**
+     * @param isSnapshot files are read from the directory `..data` points to
+     * @return regular files of the snapshot directory by property names
+     * @throws NoSuchFileException if snapshot directory vanished or one of its files vanished after it was listed,
+     * except for a file of the watched directory that vanished before it was read
+     */
+    private fun scan(snapshotDirectory: Path, isSnapshot: Boolean): Map<String, LoadedFile> {
+        val scannedFiles = HashMap<String, LoadedFile>()
+        val scanStartMillis = System.currentTimeMillis()
+        Files.newDirectoryStream(snapshotDirectory).use { entries ->
+            entries.forEach { file ->
+                val name = file.fileName.toString()
+                if (name.startsWith(".")) {
+                    return@forEach
+                }
+                val attributes = try {
+                    Files.readAttributes(file, BasicFileAttributes::class.java)
+                } catch (exc: NoSuchFileException) {
+                    // old snapshot is removed file by file after the swap, so its partial content is never applied
+                    if (isSnapshot) {
+                        throw exc
+                    }
+                    // removed file or broken link is not a property
+                    return@forEach
+                }
+                if (!attributes.isRegularFile) {
+                    return@forEach
+                }
+                val fileAttributes = Attributes(
+                    attributes.fileKey(),
+                    attributes.size(),
+                    attributes.lastModifiedTime().toMillis()
+                )
+                val loaded = loadedFiles[name]
+                if (loaded != null && loaded.attributes == fileAttributes) {
+                    scannedFiles[name] = loaded
+                    return@forEach
+                }
+                val digest = FileContentDigest.of(file)
+                val value = if (loaded != null && Arrays.equals(loaded.digest, digest)) {
+                    loaded.value
+                } else {
+                    try {
+                        readValue(file)
+                    } catch (exc: CharacterCodingException) {
+                        // file is probably being written, it is read again by the scan of the next modification
+                        logger.warn { "File $file is not valid UTF-8, keep previously loaded value" }
+                        loaded?.let { scannedFiles[name] = LoadedFile(null, it.digest, it.value) }
+                        return@forEach
+                    }
+                }
+                val isSettled = fileAttributes.lastModifiedMillis < scanStartMillis - MODIFIED_TIME_GRANULARITY_MILLIS
+                scannedFiles[name] = LoadedFile(fileAttributes.takeIf { isSettled }, digest, value)
+            }
+        }
+        return scannedFiles
+    }
+
+    /**
+     * @throws CharacterCodingException if file content is not valid UTF-8
+     */
+    private fun readValue(file: Path): String =
+        StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT)
+            .decode(ByteBuffer.wrap(Files.readAllBytes(file)))
+            .toString()
+
+    /**
+     * @return directory `..data` points to, watched directory itself if there is no `..data` link,
+     * null if `..data` link is broken
+     */
+    private fun resolveSnapshotDirectory(): Path? {
+        val dataLink = directory.resolve(DATA_LINK)
+        if (!Files.exists(dataLink, LinkOption.NOFOLLOW_LINKS)) {
+            return directory
+        }
+        return try {
+            dataLink.toRealPath()
+        } catch (exc: NoSuchFileException) {
+            null
+        }
+    }
+
+    override fun <T : Any?> createSubscription(
+        propertyName: String,
+        propertyType: Class<T>,
+        defaultValue: OptionalDefaultValue<T>
+    ): DynamicPropertySource.Subscription<T> =
+        inMemorySource.createSubscription(propertyName, propertyType, defaultValue)
+
+    override fun close() {
+        watchService.close()
+        watcherThread.interrupt()
+        inMemorySource.close()
+    }
+}
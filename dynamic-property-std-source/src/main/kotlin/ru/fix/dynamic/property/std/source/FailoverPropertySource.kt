@@ -0,0 +1,196 @@
+package ru.fix.dynamic.property.std.source
+
+import org.apache.logging.log4j.kotlin.Logging
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.stdlib.reference.ReferenceCleaner
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Serves properties from [secondary] source until [primary] source becomes ready.
+ * When [primary] completes, existing subscriptions switch to the primary source.
+ * Subscribers are notified only about properties which values differ between secondary and primary sources.
+ * When the last subscriber of the property goes away, failover source closes its subscription to the active source
+ * and forgets the property.
+ * If [primary] completes exceptionally, properties continue to be served from the [secondary] source.
+ * ```
+ * val zkSource = CompletableFuture.supplyAsync {
+ *     ZkDynamicPropertySource(curatorFramework, "/my-application/config", marshaller, Duration.ofMinutes(10))
+ * }
+ * val source = FailoverPropertySource(FilePropertySource(snapshotPath, marshaller = marshaller), zkSource, marshaller)
+ * ```
+ * Sources are subscribed with [String] property type,
+ * so their marshallers should return raw string values as is.
+ * Failover source does not close [secondary] and [primary] sources, they stay under control of the caller.
+ */
+class FailoverPropertySource(
+    private val secondary: DynamicPropertySource,
+    primary: CompletionStage<out DynamicPropertySource>,
+    marshaller: DynamicPropertyMarshaller,
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance()
+) : DynamicPropertySource {
+
+    companion object : Logging
+
+    @Volatile
+    private var primarySource: DynamicPropertySource? = null
+
+    @Volatile
+    private var closed = false
+
+    private val readAndNotifyLock = ReentrantLock()
+
+    private val failoverProperties = ConcurrentHashMap<String, FailoverProperty>()
+
+    /**
+     * Properties that lost their last subscription and wait to be closed outside of [readAndNotifyLock]
+     */
+    private val releasedProperties = ConcurrentLinkedQueue<FailoverProperty>()
+
+    private val propertySourcePublisher = PropertySourcePublisher(
+        propertySourceAccessor = object : PropertySourceAccessor {
+            override fun accessPropertyUnderLock(propertyName: String, accessor: (String?) -> Unit) {
+                while (true) {
+                    val property = failoverProperties.computeIfAbsent(propertyName) { FailoverProperty(it) }
+                    property.attachToActiveSource()
+                    readAndNotifyLock.withLock {
+                        // property could be released concurrently before the subscription is registered
+                        if (failoverProperties[propertyName] === property) {
+                            accessor(property.value)
+                            return
+                        }
+                    }
+                }
+            }
+
+            override fun onPropertyUnsubscribed(propertyName: String) {
+                readAndNotifyLock.withLock {
+                    if (propertySourcePublisher.hasSubscriptions(propertyName)) {
+                        return
+                    }
+                    failoverProperties.remove(propertyName)?.let { releasedProperties.add(it) }
+                }
+                // subscription could be pruned during notification, then property is closed after the lock is released
+                if (!readAndNotifyLock.isHeldByCurrentThread) {
+                    closeReleasedProperties()
+                }
+            }
+        },
+        marshaller = marshaller,
+        referenceCleaner = referenceCleaner
+    )
+
+    private inner class FailoverProperty(val propertyName: String) {
+        /**
+         * Raw value of the property in the active source. Guarded by [readAndNotifyLock]
+         */
+        var value: String? = null
+            private set
+
+        private var activeSource: DynamicPropertySource? = null
+
+        /**
+         * Guarded by this
+         */
+        private var released = false
+
+        /**
+         * Events from previous subscriptions that arrive after switch are ignored
+         */
+        @Volatile
+        private var activeSubscription: DynamicPropertySource.Subscription<String>? = null
+
+        fun attachToActiveSource() {
+            synchronized(this) {
+                val targetSource = primarySource ?: secondary
+                if (activeSource === targetSource || closed || released) return
+
+                val previousSubscription = activeSubscription
+                val subscription = targetSource.createSubscription(
+                    propertyName,
+                    String::class.java,
+                    OptionalDefaultValue.of<String>(null)
+                )
+                activeSource = targetSource
+                activeSubscription = subscription
+                subscription.setAndCallListener { newValue -> onSourceChanged(subscription, newValue) }
+                previousSubscription?.close()
+            }
+        }
+
+        private fun onSourceChanged(subscription: DynamicPropertySource.Subscription<String>, newValue: String?) {
+            readAndNotifyLock.withLock {
+                if (subscription !== activeSubscription || newValue == value) return
+                value = newValue
+                propertySourcePublisher.notifyAboutPropertyChange(propertyName, newValue)
+            }
+            closeReleasedProperties()
+        }
+
+        fun close() {
+            synchronized(this) {
+                released = true
+                activeSubscription?.close()
+                activeSubscription = null
+            }
+        }
+    }
+
+    /**
+     * Closes subscriptions of released properties to underlying sources, which could take their own locks on close
+     */
+    private fun closeReleasedProperties() {
+        while (true) {
+            val property = releasedProperties.poll() ?: return
+            property.close()
+        }
+    }
+
+    internal fun failoverPropertyNames(): Set<String> = failoverProperties.keys
+
+    /**
+     * @return true if properties are served from the primary source
+     */
+    fun isPrimaryActive(): Boolean = primarySource != null
+
+    private fun switchToPrimary(primary: DynamicPropertySource) {
+        if (closed) return
+        logger.info { "Primary property source $primary is ready. Switch ${failoverProperties.size} properties." }
+        primarySource = primary
+        failoverProperties.values.forEach { it.attachToActiveSource() }
+    }
+
+    override fun <T : Any?> createSubscription(
+        propertyName: String,
+        propertyType: Class<T>,
+        defaultValue: OptionalDefaultValue<T>
+    ): DynamicPropertySource.Subscription<T> =
+        propertySourcePublisher.createSubscription(propertyName, propertyType, defaultValue)
+
+    override fun close() {
+        closed = true
+        propertySourcePublisher.close()
+        failoverProperties.values.forEach { it.close() }
+        failoverProperties.clear()
+        closeReleasedProperties()
+    }
+
+    init {
+        primary.whenComplete { source, exc ->
+            if (exc != null) {
+                logger.error("Primary property source failed to start. Continue with secondary $secondary", exc)
+            } else {
+                try {
+                    switchToPrimary(source)
+                } catch (switchExc: Exception) {
+                    logger.error("Failed to switch to primary property source $source", switchExc)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.fix.dynamic.property.std.source
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+
+/**
+ * SHA-256 of file content streamed through fixed size buffer by plain channel reads,
+ * so checking whether the file changed does not allocate memory proportional to the file size.
+ * File is closed before return, so it is not kept open or mapped and can be replaced or removed on any platform.
+ * Content itself is read by the caller only if the digest changed.
+ */
+internal object FileContentDigest {
+    private const val BUFFER_SIZE = 8192
+
+    fun of(filePath: Path): ByteArray {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        FileChannel.open(filePath, StandardOpenOption.READ).use { channel ->
+            while (channel.read(buffer) >= 0) {
+                buffer.flip()
+                digest.update(buffer)
+                buffer.clear()
+            }
+        }
+        return digest.digest()
+    }
+}
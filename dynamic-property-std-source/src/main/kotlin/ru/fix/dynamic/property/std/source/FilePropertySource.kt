@@ -1,5 +1,6 @@
 package ru.fix.dynamic.property.std.source
 
+import org.apache.logging.log4j.kotlin.Logging
 import ru.fix.dynamic.property.api.DynamicProperty
 import ru.fix.dynamic.property.api.PropertySubscription
 import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
@@ -7,32 +8,47 @@ import ru.fix.dynamic.property.api.source.DynamicPropertySource
 import ru.fix.dynamic.property.api.source.OptionalDefaultValue
 import ru.fix.stdlib.files.FileWatcher
 import ru.fix.stdlib.reference.ReferenceCleaner
-import java.nio.charset.StandardCharsets
 import java.nio.file.Files
+import java.nio.file.NoSuchFileException
 import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.time.Duration
 import java.util.*
-
-object PropertiesFileParser : FilePropertySource.Parser {
-    override fun parsePropertiesFile(filePath: Path): Map<String, String> {
-        val javaProps = Properties().apply {
-            load(Files.newBufferedReader(filePath, StandardCharsets.UTF_8))
-        }
-        return javaProps as Map<String, String>
-    }
-}
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 
 /**
  * Load properties from file.
  * Watch for file modifications and update properties when content changes.
+ * File is parsed only if digest of its content differs from the digest of the last parsed content,
+ * so events that touch only file metadata do not cause reload.
+ * Digest is computed by streaming the file through fixed size buffer,
+ * file is read by the [Parser] only if the digest changed.
+ *
+ * Editors and deploy scripts often write the file in several steps, truncate and then rewrite it,
+ * or write new content to temporary file and rename it over the source file.
+ * So file modification events are coalesced: file is parsed only after it was not modified for [settleWindow].
+ * If file changes while it is parsed, parsed content is dropped and file is parsed again after [settleWindow].
+ * File that is temporarily missing or empty keeps previously loaded properties,
+ * empty file is applied only if it stays empty for one more [settleWindow].
+ *
+ * @param settleWindow how long file should stay unmodified before it is parsed
  */
 class FilePropertySource(
     sourceFilePath: DynamicProperty<Path>,
     private val propertyParser: Parser = PropertiesFileParser,
     marshaller: DynamicPropertyMarshaller,
-    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance()
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance(),
+    private val settleWindow: Duration = DEFAULT_SETTLE_WINDOW
 ) :
     DynamicPropertySource {
 
+    companion object : Logging {
+        @JvmField
+        val DEFAULT_SETTLE_WINDOW: Duration = Duration.ofMillis(200)
+    }
+
     @FunctionalInterface
     interface Parser {
         fun parsePropertiesFile(filePath: Path): Map<String, String>
@@ -47,6 +63,28 @@ class FilePropertySource(
 
     private val fileWatcher = FileWatcher()
 
+    private val settleExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "file-property-source-settle").apply { isDaemon = true }
+    }
+
+    /**
+     * Properties of the last parsed file. Guarded by this.
+     * Declared before init block, since the path listener loads the file during construction.
+     */
+    private var loadedProperties: Map<String, String> = emptyMap()
+    private var loadedPath: Path? = null
+    private var loadedDigest: ByteArray? = null
+
+    /**
+     * Path of the watched file. Guarded by this.
+     */
+    private var watchedPath: Path? = null
+
+    /**
+     * Guarded by this
+     */
+    private var pendingUpdate: ScheduledFuture<*>? = null
+
     init {
         this.sourceFilePath = sourceFilePath.createSubscription()
             .setAndCallListener { prevPath, newPath ->
@@ -55,25 +93,117 @@ class FilePropertySource(
                         fileWatcher.unregister(prevPath)
                     }
                     fileWatcher.register(newPath) {
-                        updateProperties(newPath)
+                        scheduleUpdate(newPath, confirmEmptyFile = false)
+                    }
+                }
+                synchronized(this) {
+                    watchedPath = newPath
+                    pendingUpdate?.cancel(false)
+                    if (!updateProperties(newPath, fileState(newPath))) {
+                        scheduleUpdate(newPath, confirmEmptyFile = false)
                     }
                 }
-                updateProperties(newPath)
             }
     }
 
+    private data class FileState(
+        val fileKey: Any?,
+        val size: Long,
+        val lastModifiedMillis: Long
+    )
+
+    /**
+     * @return null if file does not exist
+     */
+    private fun fileState(path: Path): FileState? =
+        try {
+            val attributes = Files.readAttributes(path, BasicFileAttributes::class.java)
+            FileState(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime().toMillis())
+        } catch (exc: NoSuchFileException) {
+            null
+        }
+
+    /**
+     * Each new event postpones the update, so burst of events is handled by single update
+     */
+    @Synchronized
+    private fun scheduleUpdate(path: Path, confirmEmptyFile: Boolean) {
+        pendingUpdate?.cancel(false)
+        pendingUpdate = settleExecutor.schedule({
+            try {
+                updateSettledProperties(path, confirmEmptyFile)
+            } catch (exc: Exception) {
+                logger.error("Failed to update properties from file $path", exc)
+            }
+        }, settleWindow.toMillis(), TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    private fun updateSettledProperties(path: Path, confirmEmptyFile: Boolean) {
+        if (path != watchedPath) {
+            return
+        }
+        val state = fileState(path)
+        if (state == null) {
+            // file is being replaced, watcher notifies when new file appears
+            logger.warn { "File $path does not exist, keep previously loaded properties" }
+            return
+        }
+        val sinceModification = System.currentTimeMillis() - state.lastModifiedMillis
+        // modification time in the future is ignored, so clock skew does not postpone the update
+        if (sinceModification in 0 until settleWindow.toMillis()) {
+            scheduleUpdate(path, confirmEmptyFile)
+            return
+        }
+        if (state.size == 0L && loadedProperties.isNotEmpty() && !confirmEmptyFile) {
+            // file could be truncated before it is rewritten
+            scheduleUpdate(path, confirmEmptyFile = true)
+            return
+        }
+        try {
+            if (!updateProperties(path, state)) {
+                scheduleUpdate(path, confirmEmptyFile = false)
+            }
+        } catch (exc: Exception) {
+            logger.error("Failed to parse file $path, keep previously loaded properties", exc)
+        }
+    }
 
-    private fun updateProperties(newPath: Path) {
+    /**
+     * Applies only added, changed and removed properties as one batch,
+     * so subscribers of unchanged properties are not notified.
+     *
+     * @param state state of the file before it is read
+     * @return false if file changed while it was read, so nothing was applied
+     */
+    @Synchronized
+    private fun updateProperties(newPath: Path, state: FileState?): Boolean {
+        val digest = FileContentDigest.of(newPath)
+        if (newPath == loadedPath && Arrays.equals(digest, loadedDigest)) {
+            return true
+        }
         val newProperties = propertyParser.parsePropertiesFile(newPath)
+        if (fileState(newPath) != state) {
+            return false
+        }
 
+        val changes = HashMap<String, String?>()
         newProperties.forEach { (key, value) ->
-            inMemorySource[key] = value
+            if (loadedProperties[key] != value) {
+                changes[key] = value
+            }
         }
-        inMemorySource.propertyNames()
+        loadedProperties.keys
             .filter { it !in newProperties }
-            .forEach { name ->
-                inMemorySource.remove(name)
-            }
+            .forEach { changes[it] = null }
+        loadedProperties = newProperties
+        loadedPath = newPath
+        loadedDigest = digest
+
+        if (changes.isNotEmpty()) {
+            inMemorySource.update(changes)
+        }
+        return true
     }
 
     override fun <T : Any?> createSubscription(
@@ -87,6 +217,7 @@ class FilePropertySource(
     override fun close() {
         sourceFilePath.close()
         fileWatcher.close()
+        settleExecutor.shutdownNow()
         inMemorySource.close()
     }
 }
\ No newline at end of file
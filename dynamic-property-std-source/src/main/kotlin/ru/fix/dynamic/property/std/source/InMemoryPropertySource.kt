@@ -27,6 +27,10 @@ open class InMemoryPropertySource(
                     accessor(properties[propertyName])
                 }
             }
+
+            override fun onPropertyUnsubscribed(propertyName: String) {
+                // property values are kept regardless of subscriptions
+            }
         },
         marshaller = marshaller,
         referenceCleaner = referenceCleaner
@@ -46,6 +50,24 @@ open class InMemoryPropertySource(
         }
     }
 
+    /**
+     * Applies all changes as one batch under single lock.
+     * Subscribers are notified after all changes applied and only about properties which values actually changed.
+     *
+     * @param changes new property values, null value removes the property
+     */
+    fun update(changes: Map<String, String?>) {
+        readAndChangeLock.withLock {
+            val changedProperties = changes.filter { (key, value) ->
+                val previousValue = if (value == null) properties.remove(key) else properties.put(key, value)
+                previousValue != value
+            }
+            changedProperties.forEach { (key, value) ->
+                propertySourcePublisher.notifyAboutPropertyChange(key, value)
+            }
+        }
+    }
+
     fun propertyNames(): Set<String> = properties.keys
 
     override fun <T : Any?> createSubscription(
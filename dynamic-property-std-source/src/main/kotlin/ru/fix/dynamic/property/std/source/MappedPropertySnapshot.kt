@@ -0,0 +1,250 @@
+package ru.fix.dynamic.property.std.source
+
+import org.apache.logging.log4j.kotlin.Logging
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.nio.Buffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+
+/**
+ * Layout of memory-mapped property snapshot file.
+ * ```
+ * 0  magic         int
+ * 4  format        int
+ * 8  sequence      long  odd while writer updates the snapshot, even when snapshot is consistent
+ * 16 data length   int
+ * 20 data checksum int   CRC32 of data
+ * 24 reserved      long
+ * 32 data          [count int] and then [key length int][key utf-8][value length int][value utf-8] for each property
+ * ```
+ */
+internal object MappedPropertySnapshotFormat {
+    const val MAGIC = 0x44505331
+    const val FORMAT = 1
+
+    const val MAGIC_OFFSET = 0
+    const val FORMAT_OFFSET = 4
+    const val SEQUENCE_OFFSET = 8
+    const val LENGTH_OFFSET = 16
+    const val CHECKSUM_OFFSET = 20
+    const val HEADER_SIZE = 32
+
+    fun encode(properties: Map<String, String>): ByteArray {
+        val output = ByteArrayOutputStream()
+        DataOutputStream(output).use { data ->
+            data.writeInt(properties.size)
+            properties.forEach { (key, value) ->
+                writeString(data, key)
+                writeString(data, value)
+            }
+        }
+        return output.toByteArray()
+    }
+
+    fun decode(bytes: ByteArray): Map<String, String> {
+        DataInputStream(ByteArrayInputStream(bytes)).use { data ->
+            val count = data.readInt()
+            val properties = HashMap<String, String>(count * 2)
+            repeat(count) {
+                properties[readString(data)] = readString(data)
+            }
+            return properties
+        }
+    }
+
+    fun checksum(bytes: ByteArray): Int = CRC32().apply { update(bytes) }.value.toInt()
+
+    private fun writeString(data: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(StandardCharsets.UTF_8)
+        data.writeInt(bytes.size)
+        data.write(bytes)
+    }
+
+    private fun readString(data: DataInputStream): String {
+        val bytes = ByteArray(data.readInt())
+        data.readFully(bytes)
+        return String(bytes, StandardCharsets.UTF_8)
+    }
+}
+
+/**
+ * Writes properties snapshot to memory-mapped file that could be read by other processes on the same host
+ * through [MappedPropertySnapshotReader].
+ * Only one writer could own the file at a time, ownership is guarded by exclusive file lock.
+ * Writer never truncates the file, it grows the file when snapshot does not fit current capacity.
+ *
+ * @param initialCapacity initial size of data region of the file in bytes
+ */
+class MappedPropertySnapshotWriter(
+    private val path: Path,
+    initialCapacity: Int = 64 * 1024
+) : AutoCloseable {
+
+    private val channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    )
+
+    private val fileLock: FileLock = channel.tryLock() ?: run {
+        channel.close()
+        throw IllegalStateException("Snapshot file $path is already owned by another writer")
+    }
+
+    private var buffer: MappedByteBuffer
+
+    private var sequence: Long
+
+    init {
+        val existingCapacity = channel.size() - MappedPropertySnapshotFormat.HEADER_SIZE
+        buffer = map(maxOf(existingCapacity, initialCapacity.toLong()).toInt())
+
+        val existingSequence =
+            if (existingCapacity >= 0 &&
+                buffer.getInt(MappedPropertySnapshotFormat.MAGIC_OFFSET) == MappedPropertySnapshotFormat.MAGIC
+            ) {
+                buffer.getLong(MappedPropertySnapshotFormat.SEQUENCE_OFFSET)
+            } else {
+                0L
+            }
+        // keep sequence growing across writer restarts, so readers do not miss the first snapshot of new writer
+        sequence = if (existingSequence % 2 == 0L) existingSequence else existingSequence + 1
+
+        buffer.putInt(MappedPropertySnapshotFormat.MAGIC_OFFSET, MappedPropertySnapshotFormat.MAGIC)
+        buffer.putInt(MappedPropertySnapshotFormat.FORMAT_OFFSET, MappedPropertySnapshotFormat.FORMAT)
+        buffer.putLong(MappedPropertySnapshotFormat.SEQUENCE_OFFSET, sequence)
+    }
+
+    private fun map(capacity: Int): MappedByteBuffer =
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, MappedPropertySnapshotFormat.HEADER_SIZE + capacity.toLong())
+
+    /**
+     * Replaces snapshot content with given properties
+     */
+    @Synchronized
+    fun write(properties: Map<String, String>) {
+        val data = MappedPropertySnapshotFormat.encode(properties)
+
+        buffer.putLong(MappedPropertySnapshotFormat.SEQUENCE_OFFSET, ++sequence)
+
+        val capacity = buffer.capacity() - MappedPropertySnapshotFormat.HEADER_SIZE
+        if (data.size > capacity) {
+            buffer = map(maxOf(data.size, capacity * 2))
+        }
+
+        val dataView = buffer.duplicate()
+        (dataView as Buffer).position(MappedPropertySnapshotFormat.HEADER_SIZE)
+        dataView.put(data)
+        buffer.putInt(MappedPropertySnapshotFormat.LENGTH_OFFSET, data.size)
+        buffer.putInt(MappedPropertySnapshotFormat.CHECKSUM_OFFSET, MappedPropertySnapshotFormat.checksum(data))
+
+        buffer.putLong(MappedPropertySnapshotFormat.SEQUENCE_OFFSET, ++sequence)
+    }
+
+    @Synchronized
+    override fun close() {
+        buffer.force()
+        fileLock.release()
+        channel.close()
+    }
+}
+
+/**
+ * Reads properties snapshot written by [MappedPropertySnapshotWriter].
+ * Checking for a new snapshot costs single read of the sequence counter from memory-mapped file.
+ * Not thread safe.
+ */
+class MappedPropertySnapshotReader(
+    private val path: Path
+) : AutoCloseable {
+
+    companion object : Logging {
+        /**
+         * Sequence that does not match any snapshot
+         */
+        const val NO_SEQUENCE = -1L
+
+        private const val MAX_READ_ATTEMPTS = 100
+    }
+
+    class Snapshot(
+        val sequence: Long,
+        val properties: Map<String, String>
+    )
+
+    private var channel: FileChannel? = null
+    private var buffer: MappedByteBuffer? = null
+
+    /**
+     * @return null if file does not exist yet or snapshot sequence is the same as [lastSequence]
+     */
+    fun readIfChanged(lastSequence: Long): Snapshot? {
+        var mapped = map(MappedPropertySnapshotFormat.HEADER_SIZE.toLong()) ?: return null
+
+        for (attempt in 1..MAX_READ_ATTEMPTS) {
+            val sequence = mapped.getLong(MappedPropertySnapshotFormat.SEQUENCE_OFFSET)
+            if (sequence == lastSequence) {
+                return null
+            }
+            if (sequence % 2 != 0L) {
+                // writer is updating the snapshot
+                Thread.yield()
+                continue
+            }
+            val length = mapped.getInt(MappedPropertySnapshotFormat.LENGTH_OFFSET)
+            val checksum = mapped.getInt(MappedPropertySnapshotFormat.CHECKSUM_OFFSET)
+            mapped = map(MappedPropertySnapshotFormat.HEADER_SIZE.toLong() + length) ?: return null
+
+            val data = ByteArray(length)
+            val dataView = mapped.duplicate()
+            (dataView as Buffer).position(MappedPropertySnapshotFormat.HEADER_SIZE)
+            dataView.get(data)
+
+            if (mapped.getLong(MappedPropertySnapshotFormat.SEQUENCE_OFFSET) == sequence &&
+                MappedPropertySnapshotFormat.checksum(data) == checksum
+            ) {
+                return Snapshot(sequence, MappedPropertySnapshotFormat.decode(data))
+            }
+        }
+        logger.warn { "Failed to read consistent snapshot from $path after $MAX_READ_ATTEMPTS attempts" }
+        return null
+    }
+
+    private fun map(minimalSize: Long): MappedByteBuffer? {
+        val current = buffer
+        if (current != null && current.capacity() >= minimalSize) {
+            return current
+        }
+        if (!Files.exists(path)) {
+            return null
+        }
+        val fileChannel = channel ?: FileChannel.open(path, StandardOpenOption.READ).also { channel = it }
+        val size = fileChannel.size()
+        if (size < minimalSize) {
+            return null
+        }
+        val mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+        if (mapped.getInt(MappedPropertySnapshotFormat.MAGIC_OFFSET) != MappedPropertySnapshotFormat.MAGIC) {
+            logger.warn { "File $path is not a property snapshot" }
+            return null
+        }
+        buffer = mapped
+        return mapped
+    }
+
+    override fun close() {
+        channel?.close()
+        channel = null
+        buffer = null
+    }
+}
@@ -0,0 +1,115 @@
+package ru.fix.dynamic.property.std.source
+
+import org.apache.logging.log4j.kotlin.Logging
+import ru.fix.dynamic.property.api.DynamicProperty
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.stdlib.concurrency.threads.ReschedulableScheduler
+import ru.fix.stdlib.concurrency.threads.Schedule
+import ru.fix.stdlib.reference.ReferenceCleaner
+import java.nio.file.Path
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+
+/**
+ * Reads properties from host-local memory-mapped snapshot file written by [MappedPropertySnapshotWriter].
+ * Allows several JVMs on the same host to share single copy of the config loaded by one writer process,
+ * e.g. by the process that holds ZooKeeper session and subscribed to the config tree.
+ * ```
+ * // writer process
+ * val writer = MappedPropertySnapshotWriter(Paths.get("/dev/shm/my-application.config"))
+ * writer.write(zkSource.readAllProperties())
+ *
+ * // other processes
+ * val source = MappedSnapshotPropertySource(Paths.get("/dev/shm/my-application.config"), marshaller, scheduler, schedule)
+ * ```
+ * [scheduler] regularly checks snapshot sequence counter according to [pollingSchedule].
+ * When sequence changes, source reads the snapshot and notifies only about changed properties.
+ * Source owns the [scheduler] and shuts it down on [close].
+ *
+ * @param shutdownTimeout how long [close] will wait for polling process to stop
+ */
+class MappedSnapshotPropertySource(
+    snapshotPath: Path,
+    marshaller: DynamicPropertyMarshaller,
+    private val scheduler: ReschedulableScheduler,
+    pollingSchedule: DynamicProperty<Schedule>,
+    private val shutdownTimeout: Duration = Duration.ofMinutes(1),
+    referenceCleaner: ReferenceCleaner = ReferenceCleaner.getInstance()
+) : DynamicPropertySource {
+
+    companion object : Logging
+
+    private val reader = MappedPropertySnapshotReader(snapshotPath)
+
+    private val inMemorySource = InMemoryPropertySource(marshaller, referenceCleaner)
+
+    private val refreshLock = Any()
+
+    /**
+     * Guarded by [refreshLock]
+     */
+    private var lastSequence = MappedPropertySnapshotReader.NO_SEQUENCE
+
+    /**
+     * Guarded by [refreshLock]
+     */
+    private var lastProperties: Map<String, String> = emptyMap()
+
+    init {
+        refresh()
+        scheduler.schedule(pollingSchedule, 0) {
+            try {
+                refresh()
+            } catch (exc: Exception) {
+                logger.error("Failed to read property snapshot from $snapshotPath", exc)
+            }
+        }
+    }
+
+    private fun refresh() {
+        synchronized(refreshLock) {
+            val snapshot = reader.readIfChanged(lastSequence) ?: return
+
+            val changes = HashMap<String, String?>()
+            snapshot.properties.forEach { (key, value) ->
+                if (lastProperties[key] != value) {
+                    changes[key] = value
+                }
+            }
+            lastProperties.keys
+                .filter { it !in snapshot.properties }
+                .forEach { changes[it] = null }
+
+            logger.debug { "Snapshot sequence ${snapshot.sequence}: ${changes.size} properties changed" }
+            inMemorySource.update(changes)
+
+            lastSequence = snapshot.sequence
+            lastProperties = snapshot.properties
+        }
+    }
+
+    override fun <T : Any?> createSubscription(
+        propertyName: String,
+        propertyType: Class<T>,
+        defaultValue: OptionalDefaultValue<T>
+    ): DynamicPropertySource.Subscription<T> =
+        inMemorySource.createSubscription(propertyName, propertyType, defaultValue)
+
+    override fun close() {
+        scheduler.shutdown()
+        try {
+            if (!scheduler.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.error("Failed to await termination for $shutdownTimeout")
+                scheduler.shutdownNow()
+            }
+        } catch (exc: InterruptedException) {
+            logger.error("Failed to properly close mapped snapshot property source", exc)
+        }
+        synchronized(refreshLock) {
+            reader.close()
+        }
+        inMemorySource.close()
+    }
+}
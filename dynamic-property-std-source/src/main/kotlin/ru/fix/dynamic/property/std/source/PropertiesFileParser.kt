@@ -0,0 +1,213 @@
+package ru.fix.dynamic.property.std.source
+
+import java.io.Reader
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Parses `.properties` files in the format of [java.util.Properties.load] in a single streaming pass.
+ * Key/value pairs are produced directly from the reader, without building intermediate [java.util.Properties].
+ * File is read as UTF-8, malformed UTF-8 input, e.g. file cut off in the middle of a character,
+ * fails the parse with [java.nio.charset.CharacterCodingException] instead of being replaced.
+ */
+object PropertiesFileParser : FilePropertySource.Parser {
+
+    override fun parsePropertiesFile(filePath: Path): Map<String, String> {
+        val properties = HashMap<String, String>()
+        Files.newBufferedReader(filePath, StandardCharsets.UTF_8).use { reader ->
+            parse(reader) { key, value -> properties[key] = value }
+        }
+        return properties
+    }
+
+    /**
+     * Passes properties to the [consumer] in order of their appearance in the [reader].
+     * Property that occurs several times is passed each time.
+     *
+     * @throws IllegalArgumentException if reader contains malformed `\uxxxx` escape
+     */
+    fun parse(reader: Reader, consumer: (key: String, value: String) -> Unit) {
+        val lineReader = LogicalLineReader(reader)
+        val line = StringBuilder()
+        while (lineReader.readLine(line)) {
+            parseLine(line, consumer)
+        }
+    }
+
+    private fun parseLine(line: CharSequence, consumer: (key: String, value: String) -> Unit) {
+        var keyEnd = 0
+        var valueStart = line.length
+        var hasSeparator = false
+        var precedingBackslash = false
+        while (keyEnd < line.length) {
+            val c = line[keyEnd]
+            if ((c == '=' || c == ':') && !precedingBackslash) {
+                valueStart = keyEnd + 1
+                hasSeparator = true
+                break
+            }
+            if (isWhitespace(c) && !precedingBackslash) {
+                valueStart = keyEnd + 1
+                break
+            }
+            precedingBackslash = c == '\\' && !precedingBackslash
+            keyEnd++
+        }
+        while (valueStart < line.length) {
+            val c = line[valueStart]
+            if (!isWhitespace(c)) {
+                if (hasSeparator || (c != '=' && c != ':')) {
+                    break
+                }
+                hasSeparator = true
+            }
+            valueStart++
+        }
+        consumer(unescape(line, 0, keyEnd), unescape(line, valueStart, line.length))
+    }
+
+    private fun unescape(line: CharSequence, start: Int, end: Int): String {
+        val result = StringBuilder(end - start)
+        var index = start
+        while (index < end) {
+            val c = line[index++]
+            if (c != '\\' || index == end) {
+                result.append(c)
+                continue
+            }
+            when (val escaped = line[index++]) {
+                'u' -> {
+                    require(index + 4 <= end) { "Malformed \\uxxxx encoding" }
+                    var code = 0
+                    repeat(4) {
+                        code = code * 16 + hexDigit(line[index++])
+                    }
+                    result.append(code.toChar())
+                }
+                't' -> result.append('\t')
+                'r' -> result.append('\r')
+                'n' -> result.append('\n')
+                'f' -> result.append('\u000c')
+                else -> result.append(escaped)
+            }
+        }
+        return result.toString()
+    }
+
+    private fun hexDigit(c: Char): Int = when (c) {
+        in '0'..'9' -> c - '0'
+        in 'a'..'f' -> c - 'a' + 10
+        in 'A'..'F' -> c - 'A' + 10
+        else -> throw IllegalArgumentException("Malformed \\uxxxx encoding")
+    }
+
+    private fun isWhitespace(c: Char) = c == ' ' || c == '\t' || c == '\u000c'
+
+    /**
+     * Joins natural lines continued by trailing backslash into logical lines,
+     * skipping blank lines, comment lines and leading whitespace.
+     * Follows line reading rules of [java.util.Properties.load], including its corner cases.
+     */
+    private class LogicalLineReader(private val reader: Reader) {
+        companion object {
+            private const val NO_LOOKAHEAD = -2
+        }
+
+        /**
+         * Character that was read ahead to find out where the natural line ends
+         */
+        private var lookahead = NO_LOOKAHEAD
+
+        private fun read(): Int {
+            val next = lookahead
+            if (next == NO_LOOKAHEAD) {
+                return reader.read()
+            }
+            lookahead = NO_LOOKAHEAD
+            return next
+        }
+
+        /**
+         * @return false if there are no more logical lines
+         */
+        fun readLine(line: StringBuilder): Boolean {
+            line.setLength(0)
+            var skipWhitespace = true
+            var isContinuation = false
+            var precedingBackslash = false
+            while (true) {
+                val next = read()
+                if (next == -1) {
+                    if (line.isEmpty()) {
+                        return false
+                    }
+                    if (precedingBackslash) {
+                        line.setLength(line.length - 1)
+                    }
+                    return true
+                }
+                val c = next.toChar()
+                if (skipWhitespace) {
+                    if (isWhitespace(c) || (isLineTerminator(c) && !isContinuation)) {
+                        continue
+                    }
+                    skipWhitespace = false
+                    isContinuation = false
+                }
+                if (line.isEmpty() && (c == '#' || c == '!')) {
+                    if (!skipComment()) {
+                        return false
+                    }
+                    skipWhitespace = true
+                    continue
+                }
+                if (!isLineTerminator(c)) {
+                    line.append(c)
+                    precedingBackslash = c == '\\' && !precedingBackslash
+                    continue
+                }
+                if (line.isEmpty()) {
+                    skipWhitespace = true
+                    continue
+                }
+                val following = read()
+                if (following == -1) {
+                    if (precedingBackslash) {
+                        line.setLength(line.length - 1)
+                    }
+                    return true
+                }
+                if (!precedingBackslash) {
+                    lookahead = following
+                    return true
+                }
+                // backslash at the end of natural line is not part of the logical line
+                line.setLength(line.length - 1)
+                precedingBackslash = false
+                skipWhitespace = true
+                isContinuation = true
+                if (c != '\r' || following != '\n'.toInt()) {
+                    lookahead = following
+                }
+            }
+        }
+
+        /**
+         * @return false if comment ends with the end of the reader
+         */
+        private fun skipComment(): Boolean {
+            while (true) {
+                val next = read()
+                if (next == -1) {
+                    return false
+                }
+                if (isLineTerminator(next.toChar())) {
+                    return true
+                }
+            }
+        }
+
+        private fun isLineTerminator(c: Char) = c == '\n' || c == '\r'
+    }
+}
@@ -19,8 +19,51 @@ interface PropertySourceAccessor {
      * During the lock PropertySource must no send any notification about property or change property value
      */
     fun accessPropertyUnderLock(propertyName: String, accessor: (String?) -> Unit)
+
+    /**
+     * Invoked when property lost its last subscription: subscription was closed or pruned by [ReferenceCleaner].
+     * PropertySource could release resources that it keeps for the property.
+     * Property could get new subscription concurrently, use [PropertySourcePublisher.hasSubscriptions]
+     * under the same lock as in [accessPropertyUnderLock] to check it.
+     */
+    @JvmDefault
+    fun onPropertyUnsubscribed(propertyName: String) {
+    }
+}
+
+/**
+ * Accessor of the source that calls listeners outside of its locks,
+ * so listener that subscribes to other properties of the source could not deadlock with notifications.
+ * [PropertySourcePublisher] does not use [accessPropertyUnderLock] of such accessor:
+ * subscription is registered before the value is read by [readVersionedProperty],
+ * and notifications are published by [PropertySourcePublisher.notifyAboutVersionedPropertyChange].
+ * Value that is older than the value already passed to the subscription is never passed to it,
+ * value that is equal to the last value passed to the subscription is not passed again.
+ */
+interface VersionedPropertySourceAccessor : PropertySourceAccessor {
+
+    /**
+     * Reads current value of the property.
+     * Value read later must get greater version than values of the same property read before.
+     */
+    fun readVersionedProperty(propertyName: String): VersionedPropertyValue
+
+    /**
+     * Reads current value of the property for new subscription.
+     * Source could wait for the value to be loaded if the subscription could not fall back to default value.
+     *
+     * @param hasDefaultValue true if subscription has default value
+     */
+    @JvmDefault
+    fun readVersionedProperty(propertyName: String, hasDefaultValue: Boolean): VersionedPropertyValue =
+        readVersionedProperty(propertyName)
 }
 
+/**
+ * @param value serialized value of the property or null if property is absent
+ */
+class VersionedPropertyValue(val value: String?, val version: Long)
+
 class PropertySourcePublisher(
     private val propertySourceAccessor: PropertySourceAccessor,
     private val marshaller: DynamicPropertyMarshaller,
@@ -42,6 +85,17 @@ class PropertySourcePublisher(
         var listener: DynamicPropertySource.Listener<T>? = null
         var cleanableReference: CleanableWeakReference<Subscription<T>>? = null
 
+        /**
+         * Version of the value passed to the listener by [VersionedPropertySourceAccessor]. Guarded by this.
+         */
+        var deliveredVersion = Long.MIN_VALUE
+
+        /**
+         * Serialized value passed to the listener by [VersionedPropertySourceAccessor],
+         * meaningful only if [deliveredVersion] is set. Guarded by this.
+         */
+        var deliveredValue: String? = null
+
         override fun setAndCallListener(
             listener: DynamicPropertySource.Listener<T>
         ): DynamicPropertySource.Subscription<*> {
@@ -55,7 +109,11 @@ class PropertySourcePublisher(
         }
     }
 
-    private object SubscriptionsRegistry {
+    /**
+     * Each publisher keeps its own registry,
+     * so sources that publish properties with the same names do not notify each other's subscribers.
+     */
+    private inner class SubscriptionsRegistry {
         val store = ConcurrentHashMap<String, MutableSet<CleanableWeakReference<Subscription<Any?>>>>()
 
         fun addSubRef(propertyName: String, subRef: CleanableWeakReference<Subscription<Any?>>) =
@@ -65,11 +123,13 @@ class PropertySourcePublisher(
                 newSet
             }
 
-        fun removeSubRef(propertyName: String, subRef: CleanableWeakReference<Subscription<Any?>>) =
+        fun removeSubRef(propertyName: String, subRef: CleanableWeakReference<Subscription<Any?>>) {
+            var lastSubscriptionRemoved = false
             store.compute(propertyName) { _, value ->
                 if (value != null) {
                     value.remove(subRef)
                     if (value.isEmpty()) {
+                        lastSubscriptionRemoved = true
                         null
                     } else {
                         value
@@ -78,16 +138,22 @@ class PropertySourcePublisher(
                     null
                 }
             }
+            if (lastSubscriptionRemoved) {
+                propertySourceAccessor.onPropertyUnsubscribed(propertyName)
+            }
+        }
 
         fun removePrunedSubscriptionsAndGet(
             propertyName: String
         ): MutableSet<CleanableWeakReference<Subscription<Any?>>>? {
-            return store.compute(propertyName) { _, set ->
+            var lastSubscriptionRemoved = false
+            val subscriptions = store.compute(propertyName) { _, set ->
                 if (set != null) {
                     set.removeIf { ref ->
                         ref.get() == null
                     }
                     if (set.isEmpty()) {
+                        lastSubscriptionRemoved = true
                         null
                     } else {
                         set
@@ -96,8 +162,14 @@ class PropertySourcePublisher(
                     null
                 }
             }
+            if (lastSubscriptionRemoved) {
+                propertySourceAccessor.onPropertyUnsubscribed(propertyName)
+            }
+            return subscriptions
         }
 
+        fun hasSubRefs(propertyName: String) = store.containsKey(propertyName)
+
         fun removeAllSubRef() {
             val propertyIter = store.iterator()
             while (propertyIter.hasNext()) {
@@ -111,6 +183,8 @@ class PropertySourcePublisher(
         }
     }
 
+    private val subscriptionsRegistry = SubscriptionsRegistry()
+
     /**
      * Method should be invoked under property lock
      * in order to be consistent with [PropertySourceAccessor.accessPropertyUnderLock]
@@ -119,7 +193,7 @@ class PropertySourcePublisher(
      *                           if default value is absent, then property does not receive an update
      */
     fun notifyAboutPropertyChange(propertyName: String, newSerializedValue: String?) {
-        val subscriptoins = SubscriptionsRegistry.removePrunedSubscriptionsAndGet(propertyName) ?: return
+        val subscriptoins = subscriptionsRegistry.removePrunedSubscriptionsAndGet(propertyName) ?: return
 
         subscriptoins.forEach { subRef ->
             subRef.get()?.let { sub ->
@@ -133,6 +207,51 @@ class PropertySourcePublisher(
         }
     }
 
+    /**
+     * Could be invoked outside of the property lock by source with [VersionedPropertySourceAccessor].
+     * Subscriptions that already received value of the same or greater version are not notified.
+     * Subscriptions which last received value is equal to the new one are not notified either,
+     * since subscription and notification could both read the same value.
+     * Listener is invoked under the monitor of its subscription, so notifications of the subscription are serial.
+     *
+     * @param newValue if its value is null then property will be changed to default value
+     *                 if default value is absent, then property does not receive an update
+     */
+    fun notifyAboutVersionedPropertyChange(propertyName: String, newValue: VersionedPropertyValue) {
+        val subscriptions = subscriptionsRegistry.removePrunedSubscriptionsAndGet(propertyName) ?: return
+
+        subscriptions.forEach { subRef ->
+            subRef.get()?.let { sub ->
+                try {
+                    callListenerIfNewer(sub, newValue)
+                } catch (exc: Exception) {
+                    logger.error("Failed to update property {}", propertyName, exc)
+                }
+            }
+        }
+    }
+
+    private fun <T> callListenerIfNewer(subscription: Subscription<T>, versionedValue: VersionedPropertyValue) {
+        synchronized(subscription) {
+            if (versionedValue.version <= subscription.deliveredVersion) {
+                return
+            }
+            val isDeliveredAlready = subscription.deliveredVersion != Long.MIN_VALUE &&
+                    subscription.deliveredValue == versionedValue.value
+            subscription.deliveredVersion = versionedValue.version
+            subscription.deliveredValue = versionedValue.value
+            if (isDeliveredAlready) {
+                return
+            }
+            subscription.listener!!.onPropertyChanged(extractPropertyValueOrDefault(versionedValue.value, subscription))
+        }
+    }
+
+    /**
+     * @return true if property has at least one active subscription
+     */
+    fun hasSubscriptions(propertyName: String): Boolean = subscriptionsRegistry.hasSubRefs(propertyName)
+
     private fun <T> attachSubscriptionAndCallListener(subscription: Subscription<T>) {
         detachSubscription(subscription)
 
@@ -140,7 +259,7 @@ class PropertySourcePublisher(
         val subRef = referenceCleaner.register(
             subscription, subscription.propertyName
         ) { a_ref, a_propName ->
-            SubscriptionsRegistry.removeSubRef(
+            subscriptionsRegistry.removeSubRef(
                 a_propName,
                 a_ref as CleanableWeakReference<Subscription<Any?>>
             )
@@ -148,8 +267,27 @@ class PropertySourcePublisher(
 
         subscription.cleanableReference = subRef
 
+        if (propertySourceAccessor is VersionedPropertySourceAccessor) {
+            synchronized(subscription) {
+                subscription.deliveredVersion = Long.MIN_VALUE
+            }
+            // registered before the value is read, so changes after the read are not missed by notifications
+            subscriptionsRegistry.addSubRef(
+                subscription.propertyName,
+                subRef as CleanableWeakReference<Subscription<Any?>>
+            )
+            callListenerIfNewer(
+                subscription,
+                propertySourceAccessor.readVersionedProperty(
+                    subscription.propertyName,
+                    subscription.defaultValue.isPresent
+                )
+            )
+            return
+        }
+
         propertySourceAccessor.accessPropertyUnderLock(subscription.propertyName) { propertyValue ->
-            SubscriptionsRegistry.addSubRef(
+            subscriptionsRegistry.addSubRef(
                 subscription.propertyName,
                 subRef as CleanableWeakReference<Subscription<Any?>>
             )
@@ -162,7 +300,7 @@ class PropertySourcePublisher(
 
     private fun <T : Any?> detachSubscription(subscription: Subscription<T>) {
         if (subscription.cleanableReference != null) {
-            SubscriptionsRegistry.removeSubRef(
+            subscriptionsRegistry.removeSubRef(
                 subscription.propertyName,
                 subscription.cleanableReference!! as CleanableWeakReference<Subscription<Any?>>
             )
@@ -196,6 +334,6 @@ class PropertySourcePublisher(
     }
 
     override fun close() {
-        SubscriptionsRegistry.removeAllSubRef()
+        subscriptionsRegistry.removeAllSubRef()
     }
 }
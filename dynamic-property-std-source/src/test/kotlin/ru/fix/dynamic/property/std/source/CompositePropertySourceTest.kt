@@ -0,0 +1,146 @@
+package ru.fix.dynamic.property.std.source
+
+import com.natpryce.hamkrest.assertion.assertThat
+import com.natpryce.hamkrest.equalTo
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.collections.ArrayList
+import kotlin.concurrent.thread
+
+class CompositePropertySourceTest {
+
+    private val marshaller = MarshallerBuilder.createDefault()
+
+    @Test
+    fun `value from layer with highest priority wins`() {
+        val defaults = InMemoryPropertySource(marshaller)
+        val overrides = InMemoryPropertySource(marshaller)
+        defaults["pool.size"] = "10"
+
+        val source = CompositePropertySource(listOf(defaults, overrides), marshaller)
+        val values = Collections.synchronizedList(ArrayList<Int>())
+        val subscription = source.createSubscription(
+            "pool.size",
+            Integer::class.java,
+            OptionalDefaultValue.of(Integer(1))
+        ).setAndCallListener { values.add(it!!.toInt()) }
+
+        assertThat(values, equalTo(listOf(10)))
+
+        overrides["pool.size"] = "20"
+        assertThat(values, equalTo(listOf(10, 20)))
+
+        overrides.remove("pool.size")
+        assertThat(values, equalTo(listOf(10, 20, 10)))
+
+        defaults.remove("pool.size")
+        assertThat(values, equalTo(listOf(10, 20, 10, 1)))
+
+        subscription.close()
+        source.close()
+    }
+
+    @Test
+    fun `subscribers are not notified when effective value does not change`() {
+        val defaults = InMemoryPropertySource(marshaller)
+        val overrides = InMemoryPropertySource(marshaller)
+        defaults["name"] = "foo"
+        overrides["name"] = "bar"
+
+        val source = CompositePropertySource(listOf(defaults, overrides), marshaller)
+        val values = Collections.synchronizedList(ArrayList<String>())
+        val subscription = source.createSubscription(
+            "name",
+            String::class.java,
+            OptionalDefaultValue.none()
+        ).setAndCallListener { values.add(it!!) }
+
+        assertThat(values, equalTo(listOf("bar")))
+
+        defaults["name"] = "baz"
+        overrides["name"] = "bar"
+        assertThat(values, equalTo(listOf("bar")))
+
+        defaults["other"] = "value"
+        assertThat(values, equalTo(listOf("bar")))
+
+        subscription.close()
+        source.close()
+    }
+
+    @Test
+    fun `property is released when its last subscription is closed`() {
+        val defaults = InMemoryPropertySource(marshaller)
+        val overrides = InMemoryPropertySource(marshaller)
+        defaults["name"] = "foo"
+
+        val source = CompositePropertySource(listOf(defaults, overrides), marshaller)
+        val first = source.createSubscription("name", String::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { }
+        val second = source.createSubscription("name", String::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { }
+        assertThat(source.resolvedPropertyNames(), equalTo(setOf("name")))
+
+        first.close()
+        assertThat(source.resolvedPropertyNames(), equalTo(setOf("name")))
+        second.close()
+        assertThat(source.resolvedPropertyNames(), equalTo(emptySet()))
+
+        val values = Collections.synchronizedList(ArrayList<String>())
+        val subscription = source.createSubscription("name", String::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { values.add(it!!) }
+        overrides["name"] = "bar"
+        assertThat(values, equalTo(listOf("foo", "bar")))
+
+        subscription.close()
+        source.close()
+    }
+
+    @Test
+    fun `subscriber subscribes to other property while layer notifies without deadlock`() {
+        val defaults = InMemoryPropertySource(marshaller)
+        val overrides = InMemoryPropertySource(marshaller)
+        val source = CompositePropertySource(listOf(defaults, overrides), marshaller)
+
+        val listenerOfAStarted = CountDownLatch(1)
+        val defaultsLockHeld = CountDownLatch(1)
+        val subscribedToB = CountDownLatch(1)
+        val subscriptions = Collections.synchronizedList(ArrayList<DynamicPropertySource.Subscription<*>>())
+
+        subscriptions += source.createSubscription("a", String::class.java, OptionalDefaultValue.of("default"))
+            .setAndCallListener { value ->
+                if (value == "changed") {
+                    listenerOfAStarted.countDown()
+                    defaultsLockHeld.await(10, TimeUnit.SECONDS)
+                    subscriptions += source.createSubscription("b", String::class.java, OptionalDefaultValue.of("b"))
+                        .setAndCallListener { }
+                    subscribedToB.countDown()
+                }
+            }
+        subscriptions += source.createSubscription("c", String::class.java, OptionalDefaultValue.of("default"))
+            .setAndCallListener { value ->
+                if (value == "changed") {
+                    // invoked under the lock of defaults layer
+                    defaultsLockHeld.countDown()
+                    Thread.sleep(100)
+                }
+            }
+
+        val overridesChange = thread { overrides["a"] = "changed" }
+        assertTrue(listenerOfAStarted.await(10, TimeUnit.SECONDS))
+        val defaultsChange = thread { defaults["c"] = "changed" }
+
+        assertTrue(subscribedToB.await(10, TimeUnit.SECONDS))
+        overridesChange.join()
+        defaultsChange.join()
+
+        subscriptions.forEach { it.close() }
+        source.close()
+    }
+}
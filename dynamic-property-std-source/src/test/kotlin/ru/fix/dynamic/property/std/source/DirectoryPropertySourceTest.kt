@@ -0,0 +1,106 @@
+package ru.fix.dynamic.property.std.source
+
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+
+class DirectoryPropertySourceTest {
+
+    private val directory = Files.createTempDirectory("properties")
+
+    @AfterEach
+    fun afterEach() {
+        directory.toFile().deleteRecursively()
+    }
+
+    private fun createSource() = DirectoryPropertySource(directory, MarshallerBuilder.createDefault())
+
+    private fun property(source: DirectoryPropertySource, name: String) =
+        SourcedProperty(source, name, String::class.java, OptionalDefaultValue.of(null))
+
+    @Test
+    fun `file names are property names`() {
+        Files.writeString(directory.resolve("name"), "foo")
+        Files.writeString(directory.resolve(".hidden"), "value")
+        Files.createDirectory(directory.resolve("nested"))
+
+        createSource().use { source ->
+            val name = property(source, "name")
+            assertEquals("foo", name.get())
+            assertEquals(null, property(source, ".hidden").get())
+            assertEquals(null, property(source, "nested").get())
+
+            Files.writeString(directory.resolve("name"), "bar")
+            await().until { name.get() == "bar" }
+
+            val port = property(source, "port")
+            Files.writeString(directory.resolve("port"), "80")
+            await().until { port.get() == "80" }
+
+            Files.delete(directory.resolve("name"))
+            await().until { name.get() == null }
+        }
+    }
+
+    @Test
+    fun `removed directory keeps previously loaded properties`() {
+        Files.writeString(directory.resolve("name"), "foo")
+
+        createSource().use { source ->
+            val name = property(source, "name")
+            assertEquals("foo", name.get())
+
+            directory.toFile().deleteRecursively()
+            await().during(Duration.ofSeconds(1)).atMost(Duration.ofSeconds(5)).until { name.get() == "foo" }
+        }
+    }
+
+    /**
+     * Layout of Kubernetes ConfigMap volume
+     */
+    private fun writeSnapshot(snapshot: String, properties: Map<String, String>) {
+        val snapshotDirectory = Files.createDirectory(directory.resolve("..$snapshot"))
+        properties.forEach { (name, value) -> Files.writeString(snapshotDirectory.resolve(name), value) }
+        val dataLink = directory.resolve(DirectoryPropertySource.DATA_LINK)
+        val newDataLink = Files.createSymbolicLink(directory.resolve("..data_tmp"), Paths.get("..$snapshot"))
+        Files.move(newDataLink, dataLink, StandardCopyOption.ATOMIC_MOVE)
+        properties.keys.forEach { name ->
+            val link = directory.resolve(name)
+            if (!Files.exists(link)) {
+                Files.createSymbolicLink(link, Paths.get(DirectoryPropertySource.DATA_LINK, name))
+            }
+        }
+    }
+
+    @Test
+    fun `data link swap is applied as one batch`() {
+        writeSnapshot("1", mapOf("host" to "a", "port" to "80", "name" to "foo"))
+
+        createSource().use { source ->
+            val name = property(source, "name")
+            val host = property(source, "host")
+            assertEquals("foo", name.get())
+
+            val names = CopyOnWriteArrayList<String?>()
+            val nameSubscription = name.createSubscription().setAndCallListener { _, new -> names.add(new) }
+            val updates = CopyOnWriteArrayList<Pair<String?, String?>>()
+            val hostSubscription = host.createSubscription()
+                .setAndCallListener { _, new -> updates.add(Pair(new, property(source, "port").get())) }
+
+            writeSnapshot("2", mapOf("host" to "b", "port" to "81", "name" to "foo"))
+
+            await().until { updates.last() == Pair("b", "81") }
+            assertEquals(listOf(Pair("a", "80"), Pair("b", "81")), updates)
+            assertEquals(listOf("foo"), names)
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.fix.dynamic.property.std.source
+
+import com.natpryce.hamkrest.assertion.assertThat
+import com.natpryce.hamkrest.equalTo
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import kotlin.collections.ArrayList
+
+class FailoverPropertySourceTest {
+
+    private val marshaller = MarshallerBuilder.createDefault()
+
+    @Test
+    fun `serve from secondary and switch to primary notifying only changed properties`() {
+        val secondary = InMemoryPropertySource(marshaller)
+        secondary["host"] = "localhost"
+        secondary["port"] = "8080"
+
+        val primary = InMemoryPropertySource(marshaller)
+        primary["host"] = "localhost"
+        primary["port"] = "9090"
+
+        val primaryReady = CompletableFuture<DynamicPropertySource>()
+        val source = FailoverPropertySource(secondary, primaryReady, marshaller)
+
+        val hosts = Collections.synchronizedList(ArrayList<String>())
+        val hostSubscription = source.createSubscription(
+            "host",
+            String::class.java,
+            OptionalDefaultValue.none()
+        ).setAndCallListener { hosts.add(it!!) }
+
+        val port = SourcedProperty(source, "port", Integer::class.java, OptionalDefaultValue.none())
+        assertThat(port.get().toInt(), equalTo(8080))
+        assertThat(source.isPrimaryActive(), equalTo(false))
+
+        primaryReady.complete(primary)
+
+        assertThat(source.isPrimaryActive(), equalTo(true))
+        assertThat(port.get().toInt(), equalTo(9090))
+        assertThat(hosts, equalTo(listOf("localhost")))
+
+        secondary["host"] = "secondary-host"
+        assertThat(hosts, equalTo(listOf("localhost")))
+
+        primary["host"] = "primary-host"
+        assertThat(hosts, equalTo(listOf("localhost", "primary-host")))
+
+        hostSubscription.close()
+        source.close()
+    }
+
+    @Test
+    fun `keep serving from secondary when primary fails to start`() {
+        val secondary = InMemoryPropertySource(marshaller)
+        secondary["name"] = "foo"
+
+        val primaryReady = CompletableFuture<DynamicPropertySource>()
+        val source = FailoverPropertySource(secondary, primaryReady, marshaller)
+        val name = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.none())
+
+        primaryReady.completeExceptionally(IllegalStateException("primary is unavailable"))
+
+        assertThat(source.isPrimaryActive(), equalTo(false))
+        secondary["name"] = "bar"
+        assertThat(name.get(), equalTo("bar"))
+
+        source.close()
+    }
+
+    @Test
+    fun `property is released when its last subscription is closed`() {
+        val secondary = InMemoryPropertySource(marshaller)
+        secondary["name"] = "foo"
+        val primary = InMemoryPropertySource(marshaller)
+        primary["name"] = "bar"
+
+        val primaryReady = CompletableFuture<DynamicPropertySource>()
+        val source = FailoverPropertySource(secondary, primaryReady, marshaller)
+        val first = source.createSubscription("name", String::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { }
+        val second = source.createSubscription("name", String::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { }
+        assertThat(source.failoverPropertyNames(), equalTo(setOf("name")))
+
+        first.close()
+        assertThat(source.failoverPropertyNames(), equalTo(setOf("name")))
+        second.close()
+        assertThat(source.failoverPropertyNames(), equalTo(emptySet()))
+
+        primaryReady.complete(primary)
+        assertThat(source.failoverPropertyNames(), equalTo(emptySet()))
+
+        val values = Collections.synchronizedList(ArrayList<String>())
+        val subscription = source.createSubscription("name", String::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { values.add(it!!) }
+        primary["name"] = "baz"
+        assertThat(values, equalTo(listOf("bar", "baz")))
+
+        subscription.close()
+        source.close()
+    }
+}
@@ -9,6 +9,11 @@ import ru.fix.dynamic.property.api.source.OptionalDefaultValue
 import ru.fix.dynamic.property.api.source.SourcedProperty
 import ru.fix.dynamic.property.jackson.MarshallerBuilder
 import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 
 class FilePropertySourceTest {
@@ -70,4 +75,108 @@ class FilePropertySourceTest {
 
         f.toFile().delete()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `only changed properties are published on file content change`() {
+        val f = Files.createTempFile("test1", ".properties").apply { toFile().deleteOnExit() }
+
+        Files.writeString(f, "name=foo\nport=80\nobsolete=true")
+
+        val source = FilePropertySource(
+            sourceFilePath = DynamicProperty.of(f),
+            marshaller = MarshallerBuilder.createDefault()
+        )
+
+        val names = CopyOnWriteArrayList<String?>()
+        val ports = CopyOnWriteArrayList<String?>()
+        val obsoletes = CopyOnWriteArrayList<String?>()
+        val nameSubscription = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.of(null))
+            .createSubscription().setAndCallListener { _, new -> names.add(new) }
+        val portSubscription = SourcedProperty(source, "port", String::class.java, OptionalDefaultValue.of(null))
+            .createSubscription().setAndCallListener { _, new -> ports.add(new) }
+        val obsoleteSubscription =
+            SourcedProperty(source, "obsolete", String::class.java, OptionalDefaultValue.of(null))
+                .createSubscription().setAndCallListener { _, new -> obsoletes.add(new) }
+
+        Files.writeString(f, "name=foo\nport=8080")
+
+        await().until { ports == listOf("80", "8080") }
+        await().until { obsoletes == listOf("true", null) }
+        assertEquals(listOf("foo"), names)
+
+        f.toFile().delete()
+    }
+
+    @Test
+    fun `file is not parsed again when only its metadata changes`() {
+        val f = Files.createTempFile("test1", ".properties").apply { toFile().deleteOnExit() }
+        Files.writeString(f, "name=foo")
+
+        val parseCount = AtomicInteger()
+        val source = FilePropertySource(
+            sourceFilePath = DynamicProperty.of(f),
+            propertyParser = object : FilePropertySource.Parser {
+                override fun parsePropertiesFile(filePath: Path): Map<String, String> {
+                    parseCount.incrementAndGet()
+                    return PropertiesFileParser.parsePropertiesFile(filePath)
+                }
+            },
+            marshaller = MarshallerBuilder.createDefault()
+        )
+        val property = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.none())
+        assertEquals(1, parseCount.get())
+
+        Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis() + 10_000))
+        Thread.sleep(1000)
+        assertEquals(1, parseCount.get())
+
+        Files.writeString(f, "name=bar")
+        await().until { property.get() == "bar" }
+
+        f.toFile().delete()
+    }
+
+    @Test
+    fun `burst of writes is published once without intermediate content`() {
+        val f = Files.createTempFile("test1", ".properties").apply { toFile().deleteOnExit() }
+        Files.writeString(f, "name=foo\nport=80")
+
+        val source = FilePropertySource(
+            sourceFilePath = DynamicProperty.of(f),
+            marshaller = MarshallerBuilder.createDefault()
+        )
+        val names = CopyOnWriteArrayList<String?>()
+        val subscription = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.of(null))
+            .createSubscription().setAndCallListener { _, new -> names.add(new) }
+
+        Files.writeString(f, "")
+        Files.writeString(f, "name=b")
+        Files.writeString(f, "name=bar\nport=80")
+
+        await().until { names.last() == "bar" }
+        Thread.sleep(FilePropertySource.DEFAULT_SETTLE_WINDOW.toMillis() * 3)
+        assertEquals(listOf("foo", "bar"), names)
+
+        f.toFile().delete()
+    }
+
+    @Test
+    fun `empty file is applied when it stays empty`() {
+        val f = Files.createTempFile("test1", ".properties").apply { toFile().deleteOnExit() }
+        Files.writeString(f, "name=foo")
+
+        val source = FilePropertySource(
+            sourceFilePath = DynamicProperty.of(f),
+            marshaller = MarshallerBuilder.createDefault(),
+            settleWindow = Duration.ofMillis(50)
+        )
+        val property = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.of(null))
+        assertEquals("foo", property.get())
+
+        Files.writeString(f, "")
+
+        await().until { property.get() == null }
+
+        f.toFile().delete()
+    }
+}
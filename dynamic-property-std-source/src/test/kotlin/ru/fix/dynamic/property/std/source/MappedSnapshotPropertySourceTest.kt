@@ -0,0 +1,89 @@
+package ru.fix.dynamic.property.std.source
+
+import com.natpryce.hamkrest.assertion.assertThat
+import com.natpryce.hamkrest.equalTo
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.DynamicProperty
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.stdlib.concurrency.threads.ReschedulableScheduler
+import ru.fix.stdlib.concurrency.threads.Schedule
+import java.nio.file.Files
+import java.util.*
+import kotlin.collections.ArrayList
+
+class MappedSnapshotPropertySourceTest {
+
+    @Test
+    fun `read snapshot written by another writer and notify only about changed properties`() {
+        val snapshotFile = Files.createTempFile("snapshot", ".config").apply { toFile().deleteOnExit() }
+
+        val scheduler = mockk<ReschedulableScheduler>(relaxed = true)
+        val pollingTask = slot<Runnable>()
+        every {
+            scheduler.schedule(any(), ofType(Long::class), capture(pollingTask))
+        } returns mockk()
+
+        val writer = MappedPropertySnapshotWriter(snapshotFile, initialCapacity = 16)
+        writer.write(mapOf("host" to "localhost", "port" to "8080"))
+
+        val source = MappedSnapshotPropertySource(
+            snapshotFile,
+            MarshallerBuilder.createDefault(),
+            scheduler,
+            DynamicProperty.of(Schedule.withRate(100L))
+        )
+
+        val port = SourcedProperty(source, "port", Integer::class.java, OptionalDefaultValue.none())
+        assertThat(port.get().toInt(), equalTo(8080))
+
+        val hosts = Collections.synchronizedList(ArrayList<String>())
+        val hostSubscription = source.createSubscription(
+            "host",
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { hosts.add(it!!) }
+
+        val largeValue = "x".repeat(1024)
+        writer.write(mapOf("host" to "localhost", "port" to "9090", "large" to largeValue))
+        pollingTask.captured.run()
+
+        assertThat(port.get().toInt(), equalTo(9090))
+        assertThat(hosts, equalTo(listOf("localhost")))
+        assertThat(
+            SourcedProperty(source, "large", String::class.java, OptionalDefaultValue.none()).get(),
+            equalTo(largeValue)
+        )
+
+        writer.write(mapOf("port" to "9090"))
+        pollingTask.captured.run()
+        assertThat(hosts, equalTo(listOf("localhost", "default")))
+
+        hostSubscription.close()
+        source.close()
+        writer.close()
+        snapshotFile.toFile().delete()
+    }
+
+    @Test
+    fun `new writer continues sequence of previous writer`() {
+        val snapshotFile = Files.createTempFile("snapshot", ".config").apply { toFile().deleteOnExit() }
+
+        MappedPropertySnapshotWriter(snapshotFile).use { it.write(mapOf("name" to "foo")) }
+        val firstSnapshot = MappedPropertySnapshotReader(snapshotFile).use {
+            it.readIfChanged(MappedPropertySnapshotReader.NO_SEQUENCE)!!
+        }
+
+        MappedPropertySnapshotWriter(snapshotFile).use { it.write(mapOf("name" to "bar")) }
+        val secondSnapshot = MappedPropertySnapshotReader(snapshotFile).use {
+            it.readIfChanged(firstSnapshot.sequence)!!
+        }
+
+        assertThat(secondSnapshot.properties, equalTo(mapOf("name" to "bar")))
+        snapshotFile.toFile().delete()
+    }
+}
@@ -0,0 +1,80 @@
+package ru.fix.dynamic.property.std.source
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.StringReader
+import java.nio.charset.CharacterCodingException
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.*
+
+class PropertiesFileParserTest {
+
+    private fun parse(text: String): Map<String, String> {
+        val properties = LinkedHashMap<String, String>()
+        PropertiesFileParser.parse(StringReader(text)) { key, value -> properties[key] = value }
+        return properties
+    }
+
+    private fun parseByJavaProperties(text: String): Map<String, String> =
+        Properties().apply { load(StringReader(text)) }
+            .entries.associate { (key, value) -> key as String to value as String }
+
+    @Test
+    fun `parses the same properties as java Properties`() {
+        val text = """
+            # comment
+            ! another comment \
+            plain=value
+              indented = value with spaces  
+            colon:value
+            whitespace separated
+            empty=
+            keyOnly
+            multi = first, \
+                    second, \
+                    third
+            escaped\ key\=with\:separators = \tA\\n\u0041
+            double\\
+            trailing=backslash\
+        """.trimIndent()
+
+        assertEquals(parseByJavaProperties(text), parse(text))
+        assertEquals("first, second, third", parse(text)["multi"])
+    }
+
+    @Test
+    fun `handles all line terminators`() {
+        val text = "a=1\r\nb=2\rc=3\n\n\r\n  \t\nd=4\\\r\n  5\\\n\ne = :x\n#comment\\\nf=6"
+
+        assertEquals(parseByJavaProperties(text), parse(text))
+        assertEquals("45", parse(text)["d"])
+    }
+
+    @Test
+    fun `last occurrence of property wins`() {
+        val file = Files.createTempFile("test", ".properties").apply { toFile().deleteOnExit() }
+        Files.writeString(file, "name=foo\nname=bar\nunicode=значение")
+
+        assertEquals(mapOf("name" to "bar", "unicode" to "значение"), PropertiesFileParser.parsePropertiesFile(file))
+
+        file.toFile().delete()
+    }
+
+    @Test
+    fun `malformed unicode escape is rejected`() {
+        assertThrows<IllegalArgumentException> { parse("key=\\u12") }
+        assertThrows<IllegalArgumentException> { parse("key=\\u12zz") }
+    }
+
+    @Test
+    fun `file cut off in the middle of character is rejected`() {
+        val file = Files.createTempFile("parser", ".properties")
+        val content = "key=значение".toByteArray(StandardCharsets.UTF_8)
+        Files.write(file, content.copyOf(content.size - 1))
+
+        assertThrows<CharacterCodingException> { PropertiesFileParser.parsePropertiesFile(file) }
+        file.toFile().delete()
+    }
+}
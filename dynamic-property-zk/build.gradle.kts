@@ -12,6 +12,8 @@ dependencies {
     implementation(Libs.jfix_stdlib_concurrency) {
         exclude("ru.fix", "dynamic-property-api")
     }
+    api(Libs.aggregating_profiler)
+    implementation(Libs.jackson_databind)
     implementation(project(Projs.`dynamic-property-jackson`.dependency))
     implementation(project(Projs.`dynamic-property-std-source`.dependency))
 
@@ -0,0 +1,81 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.curator.framework.recipes.cache.CuratorCache
+import org.apache.curator.framework.recipes.cache.CuratorCacheListener
+import org.apache.curator.framework.recipes.cache.CuratorCacheStorage
+import org.apache.logging.log4j.kotlin.Logging
+import java.util.*
+import java.util.stream.Collectors
+
+/**
+ * [ZkPropertyCache] based on Curator [CuratorCache] that uses single persistent recursive watch.
+ * Requires ZooKeeper 3.6+ server.
+ *
+ * Recursive watch covers reserved nodes too, such as chunks of large values,
+ * so Curator still reads them once on creation, but they are neither stored in the cache nor reported.
+ */
+internal class CuratorCachePropertyCache(
+    curatorFramework: CuratorFramework,
+    rootPath: String,
+    private val listener: ZkPropertyCache.Listener
+) : ZkPropertyCache {
+
+    companion object : Logging
+
+    private val rootPathPrefix = "${rootPath.removeSuffix("/")}/"
+
+    /**
+     * Does not keep reserved nodes, chunks of large values are read on demand
+     */
+    private inner class PropertyNodesStorage(
+        private val storage: CuratorCacheStorage = CuratorCacheStorage.standard()
+    ) : CuratorCacheStorage by storage {
+        override fun put(data: ChildData): Optional<ChildData> =
+            if (isReserved(data.path)) Optional.empty() else storage.put(data)
+    }
+
+    private val curatorCache = CuratorCache.builder(curatorFramework, rootPath)
+        .withStorage(PropertyNodesStorage())
+        .build()
+
+    init {
+        curatorCache.listenable().addListener(
+            CuratorCacheListener.builder()
+                .forCreates { node ->
+                    logger.trace { "Received CuratorCache create event: $node" }
+                    if (!isReserved(node.path)) {
+                        listener.onNodeChanged(node.path, null, node)
+                    }
+                }
+                .forChanges { oldNode, node ->
+                    logger.trace { "Received CuratorCache change event: $node" }
+                    listener.onNodeChanged(node.path, oldNode, node)
+                }
+                .forDeletes { node ->
+                    logger.trace { "Received CuratorCache delete event: $node" }
+                    listener.onNodeChanged(node.path, node, null)
+                }
+                .forInitialized {
+                    listener.onInitialized()
+                }
+                .build()
+        )
+    }
+
+    private fun isReserved(path: String) =
+        path.startsWith(rootPathPrefix) && ZkChunkManifest.isReservedProperty(path.substring(rootPathPrefix.length))
+
+    override fun start() {
+        curatorCache.start()
+    }
+
+    override fun getCurrentData(path: String): ChildData? = curatorCache.get(path).orElse(null)
+
+    override fun cachedPaths(): Collection<String> = curatorCache.stream().map { it.path }.collect(Collectors.toList())
+
+    override fun close() {
+        curatorCache.close()
+    }
+}
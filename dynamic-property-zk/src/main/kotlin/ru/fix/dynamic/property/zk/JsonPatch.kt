@@ -0,0 +1,123 @@
+package ru.fix.dynamic.property.zk
+
+import com.fasterxml.jackson.core.JsonPointer
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+
+/**
+ * [RFC 6902](https://tools.ietf.org/html/rfc6902) JSON Patch over Jackson tree model.
+ * Operations are applied to the document in place, so cost of the patch depends on the size of the patch
+ * rather than on the size of the document.
+ * Document is left partially patched if any operation fails.
+ */
+internal object JsonPatch {
+
+    /**
+     * @param patch array of patch operations
+     * @return patched document, that is the same instance as [document] unless the whole document is replaced
+     * @throws IllegalArgumentException if patch is malformed or could not be applied to the document
+     */
+    fun apply(document: JsonNode, patch: JsonNode): JsonNode {
+        require(patch.isArray) { "JSON Patch should be an array of operations" }
+        var result = document
+        patch.forEachIndexed { index, operation ->
+            try {
+                result = applyOperation(result, operation)
+            } catch (exc: IllegalArgumentException) {
+                throw IllegalArgumentException("Failed to apply JSON Patch operation $index: ${exc.message}", exc)
+            }
+        }
+        return result
+    }
+
+    private fun applyOperation(document: JsonNode, operation: JsonNode): JsonNode {
+        val path = pointer(operation, "path")
+        return when (val op = operation.path("op").asText()) {
+            "add" -> add(document, path, value(operation))
+            "remove" -> {
+                remove(document, path)
+                document
+            }
+            "replace" -> {
+                if (path.matches()) {
+                    value(operation)
+                } else {
+                    remove(document, path)
+                    add(document, path, value(operation))
+                }
+            }
+            "move" -> {
+                val from = pointer(operation, "from")
+                require(!isProperPrefix(from, path)) { "Could not move $from into its own child $path" }
+                val moved = get(document, from)
+                remove(document, from)
+                add(document, path, moved)
+            }
+            "copy" -> add(document, path, get(document, pointer(operation, "from")).deepCopy())
+            "test" -> {
+                require(get(document, path) == value(operation)) { "Value at $path does not match tested value" }
+                document
+            }
+            else -> throw IllegalArgumentException("Unknown operation '$op'")
+        }
+    }
+
+    private fun pointer(operation: JsonNode, member: String): JsonPointer {
+        val pointer = operation.get(member)
+        require(pointer != null && pointer.isTextual) { "Operation should have '$member' member" }
+        return JsonPointer.compile(pointer.asText())
+    }
+
+    private fun value(operation: JsonNode): JsonNode =
+        requireNotNull(operation.get("value")) { "Operation should have 'value' member" }
+
+    private fun get(document: JsonNode, path: JsonPointer): JsonNode {
+        val node = document.at(path)
+        require(!node.isMissingNode) { "Path $path does not exist" }
+        return node
+    }
+
+    private fun add(document: JsonNode, path: JsonPointer, value: JsonNode): JsonNode {
+        if (path.matches()) {
+            return value
+        }
+        val parent = get(document, path.head())
+        val name = path.last().matchingProperty
+        when (parent) {
+            is ObjectNode -> parent.replace(name, value)
+            is ArrayNode -> {
+                if (name == "-") {
+                    parent.add(value)
+                } else {
+                    parent.insert(arrayIndex(parent, path, parent.size()), value)
+                }
+            }
+            else -> throw IllegalArgumentException("Parent of $path is not a container")
+        }
+        return document
+    }
+
+    private fun remove(document: JsonNode, path: JsonPointer) {
+        require(!path.matches()) { "Could not remove the whole document" }
+        val parent = get(document, path.head())
+        val name = path.last().matchingProperty
+        when (parent) {
+            is ObjectNode -> {
+                require(parent.has(name)) { "Path $path does not exist" }
+                parent.remove(name)
+            }
+            is ArrayNode -> parent.remove(arrayIndex(parent, path, parent.size() - 1))
+            else -> throw IllegalArgumentException("Parent of $path is not a container")
+        }
+    }
+
+    private fun arrayIndex(array: ArrayNode, path: JsonPointer, maxIndex: Int): Int {
+        val index = path.last().matchingIndex
+        require(index in 0..maxIndex) { "Index of $path is out of bounds of array of size ${array.size()}" }
+        return index
+    }
+
+    private fun isProperPrefix(prefix: JsonPointer, path: JsonPointer): Boolean =
+        path.toString().startsWith("$prefix/")
+}
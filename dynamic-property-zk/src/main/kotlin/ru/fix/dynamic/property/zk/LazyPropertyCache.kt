@@ -0,0 +1,183 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.curator.framework.state.ConnectionState
+import org.apache.curator.framework.state.ConnectionStateListener
+import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.WatchedEvent
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.data.Stat
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * [ZkPropertyCache] that loads and watches only tracked nodes.
+ * Node becomes tracked on [track] and stops being tracked on [release].
+ *
+ * After reconnect cache checks only stat of tracked nodes and reloads data of the node
+ * only if its `mzxid` differs from the cached one.
+ */
+internal class LazyPropertyCache(
+    private val curatorFramework: CuratorFramework,
+    private val listener: ZkPropertyCache.Listener
+) : ZkPropertyCache {
+
+    companion object : Logging
+
+    private inner class TrackedNode(val path: String) {
+        /**
+         * Null if node does not exist
+         */
+        @Volatile
+        var data: ChildData? = null
+
+        @Volatile
+        var loaded = false
+
+        /**
+         * Own watcher of the node, so removing watches of released node
+         * does not remove watches of the node that tracks the same path after it
+         */
+        val watcher = Watcher { event -> onWatchedEvent(this, event) }
+    }
+
+    private val trackedNodes = ConcurrentHashMap<String, TrackedNode>()
+
+    private val connectionStateListener = ConnectionStateListener { _, newState ->
+        if (newState == ConnectionState.RECONNECTED) {
+            // watches could be lost together with expired session
+            trackedNodes.values.forEach { resync(it) }
+        }
+    }
+
+    override fun start() {
+        curatorFramework.connectionStateListenable.addListener(connectionStateListener)
+        listener.onInitialized()
+    }
+
+    override fun isCached(path: String): Boolean = trackedNodes[path]?.loaded == true
+
+    override fun cachedPaths(): Collection<String> =
+        trackedNodes.filter { (_, node) -> node.loaded && node.data != null }.keys
+
+    override fun track(path: String) {
+        val node = trackedNodes.computeIfAbsent(path) { TrackedNode(it) }
+        if (!node.loaded) {
+            synchronized(node) {
+                if (!node.loaded) {
+                    node.data = loadAndWatch(node)
+                    node.loaded = true
+                }
+            }
+            if (trackedNodes[path] !== node) {
+                // node was released while it was loaded
+                removeWatches(node)
+            }
+        }
+    }
+
+    /**
+     * Does not load the node: returns null if node is not tracked or not loaded yet.
+     * Callers read node data under the property lock, so the data is loaded by [track] beforehand.
+     */
+    override fun getCurrentData(path: String): ChildData? = trackedNodes[path]?.data
+
+    private fun isTracked(node: TrackedNode) = trackedNodes[node.path] === node
+
+    private fun loadAndWatch(node: TrackedNode): ChildData? {
+        val path = node.path
+        val stat = Stat()
+        return try {
+            val data = curatorFramework.data.storingStatIn(stat).usingWatcher(node.watcher).forPath(path)
+            ChildData(path, stat, data)
+        } catch (exc: KeeperException.NoNodeException) {
+            // watch for node creation
+            if (curatorFramework.checkExists().usingWatcher(node.watcher).forPath(path) != null) {
+                loadAndWatch(node)
+            } else {
+                null
+            }
+        }
+    }
+
+    private fun onWatchedEvent(node: TrackedNode, event: WatchedEvent) {
+        if (event.type == Watcher.Event.EventType.None || !isTracked(node)) {
+            return
+        }
+        refresh(node)
+    }
+
+    /**
+     * Reloads node data in background and sets new watch
+     */
+    private fun refresh(node: TrackedNode) {
+        val path = node.path
+        curatorFramework.data.usingWatcher(node.watcher).inBackground { _, event ->
+            when (KeeperException.Code.get(event.resultCode)) {
+                KeeperException.Code.OK -> update(node, ChildData(path, event.stat, event.data))
+                KeeperException.Code.NONODE -> refreshMissing(node)
+                else -> logger.warn { "Failed to refresh zk node $path: ${KeeperException.Code.get(event.resultCode)}" }
+            }
+        }.forPath(path)
+    }
+
+    /**
+     * Restores watch on the node and reloads node data only if node was modified
+     */
+    private fun resync(node: TrackedNode) {
+        curatorFramework.checkExists().usingWatcher(node.watcher).inBackground { _, event ->
+            if (!isTracked(node)) {
+                return@inBackground
+            }
+            val stat: Stat? = event.stat
+            when {
+                stat == null -> update(node, null)
+                stat.mzxid != node.data?.stat?.mzxid -> refresh(node)
+                else -> logger.trace { "Zk node ${node.path} is not modified since last read" }
+            }
+        }.forPath(node.path)
+    }
+
+    private fun refreshMissing(node: TrackedNode) {
+        curatorFramework.checkExists().usingWatcher(node.watcher).inBackground { _, event ->
+            if (event.stat != null) {
+                // node was created after data read
+                refresh(node)
+            } else {
+                update(node, null)
+            }
+        }.forPath(node.path)
+    }
+
+    private fun update(node: TrackedNode, data: ChildData?) {
+        val oldData = synchronized(node) {
+            val oldData = node.data
+            if (!isTracked(node) || !node.loaded || oldData?.stat?.mzxid == data?.stat?.mzxid) {
+                return
+            }
+            node.data = data
+            oldData
+        }
+        listener.onNodeChanged(node.path, oldData, data)
+    }
+
+    override fun release(path: String) {
+        val node = trackedNodes.remove(path) ?: return
+        removeWatches(node)
+    }
+
+    private fun removeWatches(node: TrackedNode) {
+        curatorFramework.watchers()
+            .remove(node.watcher)
+            .ofType(Watcher.WatcherType.Any)
+            .quietly()
+            .inBackground()
+            .forPath(node.path)
+    }
+
+    override fun close() {
+        curatorFramework.connectionStateListenable.removeListener(connectionStateListener)
+        trackedNodes.keys.toList().forEach { release(it) }
+    }
+}
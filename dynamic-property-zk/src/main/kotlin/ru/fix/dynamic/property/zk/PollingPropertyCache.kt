@@ -0,0 +1,222 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.curator.utils.ZKPaths
+import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * [ZkPropertyCache] that does not set any watches and periodically polls the tree instead.
+ *
+ * Each poll reads only stats of known nodes.
+ * Data of the node is read only if its `mzxid` changed,
+ * children of the node are listed only if its `pzxid` changed, so unchanged branches are never listed again.
+ * New branches are read entirely by [ZkTreeReader], removed branches are dropped without reads.
+ * Changes are published to the listener as regular node events.
+ *
+ * @param pollingInterval delay between the end of one poll and the start of the next one
+ * @param parallelism how many read requests could be sent to zookeeper simultaneously
+ */
+internal class PollingPropertyCache(
+    private val curatorFramework: CuratorFramework,
+    private val rootPath: String,
+    private val pollingInterval: Duration,
+    private val listener: ZkPropertyCache.Listener,
+    private val parallelism: Int = DEFAULT_PARALLELISM
+) : ZkPropertyCache {
+
+    companion object : Logging {
+        private const val DEFAULT_PARALLELISM = 16
+        private val READ_TIMEOUT = Duration.ofMinutes(2)
+    }
+
+    /**
+     * @param pzxid zxid of the last change of children list known to the cache
+     */
+    private class PolledNode(
+        @Volatile var data: ChildData,
+        @Volatile var pzxid: Long,
+        val children: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    )
+
+    /**
+     * Nodes by absolute paths. Modified only by polling thread.
+     */
+    private val nodes = ConcurrentHashMap<String, PolledNode>()
+
+    @Volatile
+    private var initialized = false
+
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "zk-property-poller").apply { isDaemon = true }
+    }
+
+    override fun start() {
+        executor.scheduleWithFixedDelay({
+            try {
+                poll()
+            } catch (exc: Exception) {
+                // scheduled task that throws is not executed anymore
+                logger.warn("Failed to poll zk tree $rootPath, will retry in $pollingInterval", exc)
+            }
+        }, 0, pollingInterval.toMillis(), TimeUnit.MILLISECONDS)
+    }
+
+    override fun getCurrentData(path: String): ChildData? = nodes[path]?.data
+
+    override fun cachedPaths(): Collection<String> = nodes.keys
+
+    private fun poll() {
+        if (!nodes.containsKey(rootPath)) {
+            loadBranch(rootPath)
+        } else {
+            val stats = readStats(nodes.keys)
+            stats.forEach { (path, stat) ->
+                // node could be already removed together with its parent
+                val node = nodes[path] ?: return@forEach
+                if (stat == null) {
+                    removeBranch(path)
+                    return@forEach
+                }
+                if (stat.mzxid != node.data.stat.mzxid) {
+                    reloadData(path, node)
+                }
+                if (stat.pzxid != node.pzxid) {
+                    reloadChildren(path, node)
+                }
+            }
+        }
+        if (!initialized) {
+            initialized = true
+            listener.onInitialized()
+        }
+    }
+
+    /**
+     * Reads stats of nodes keeping at most [parallelism] requests in flight
+     *
+     * @return stats by node paths, null if node does not exist
+     */
+    private fun readStats(paths: Collection<String>): Map<String, Stat?> {
+        val deadline = System.nanoTime() + READ_TIMEOUT.toNanos()
+        val pending = ArrayDeque(paths)
+        val results = LinkedBlockingQueue<Pair<String, Any?>>()
+        val stats = HashMap<String, Stat?>()
+        var inFlight = 0
+        while (pending.isNotEmpty() || inFlight > 0) {
+            while (pending.isNotEmpty() && inFlight < parallelism) {
+                val path = pending.poll()
+                curatorFramework.checkExists().inBackground { _, event ->
+                    val result = when (val code = KeeperException.Code.get(event.resultCode)) {
+                        KeeperException.Code.OK -> event.stat
+                        KeeperException.Code.NONODE -> null
+                        else -> KeeperException.create(code, path)
+                    }
+                    results.add(Pair(path, result))
+                }.forPath(path)
+                inFlight++
+            }
+            val (path, result) = results.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                ?: throw TimeoutException("Failed to poll zk tree $rootPath within $READ_TIMEOUT")
+            inFlight--
+            if (result is Exception) {
+                throw result
+            }
+            stats[path] = result as Stat?
+        }
+        return stats
+    }
+
+    private fun reloadData(path: String, node: PolledNode) {
+        val stat = Stat()
+        val data = try {
+            curatorFramework.data.storingStatIn(stat).forPath(path)
+        } catch (exc: KeeperException.NoNodeException) {
+            removeBranch(path)
+            return
+        }
+        val oldData = node.data
+        node.data = ChildData(path, stat, data)
+        listener.onNodeChanged(path, oldData, node.data)
+    }
+
+    private fun reloadChildren(path: String, node: PolledNode) {
+        val stat = Stat()
+        val children = try {
+            curatorFramework.children.storingStatIn(stat).forPath(path)
+        } catch (exc: KeeperException.NoNodeException) {
+            removeBranch(path)
+            return
+        }
+        val actualChildren = children.filter { !isReserved(it) }.toSet()
+        (node.children - actualChildren).forEach { removeBranch(ZKPaths.makePath(path, it)) }
+        (actualChildren - node.children).forEach { loadBranch(ZKPaths.makePath(path, it)) }
+        // children list is not considered as read until all new branches are loaded
+        node.pzxid = stat.pzxid
+    }
+
+    /**
+     * Reads the node and all its descendants.
+     * Children are listed after the data of their parent is read,
+     * so `pzxid` of the parent is never newer than its known children.
+     * Partially read branch is dropped, so it is read again by the next poll.
+     */
+    private fun loadBranch(path: String) {
+        val stat = Stat()
+        val data = try {
+            curatorFramework.data.storingStatIn(stat).forPath(path)
+        } catch (exc: KeeperException.NoNodeException) {
+            return
+        }
+        addNode(path, ChildData(path, stat, data))
+        if (stat.numChildren == 0) {
+            return
+        }
+        try {
+            ZkTreeReader(curatorFramework, parallelism, READ_TIMEOUT).read(path, object : ZkTreeReader.Visitor {
+                override fun onNode(path: String, data: ByteArray?, stat: Stat): Boolean {
+                    if (isReserved(ZKPaths.getNodeFromPath(path))) {
+                        return false
+                    }
+                    addNode(path, ChildData(path, stat, data))
+                    return true
+                }
+            })
+        } catch (exc: Exception) {
+            removeBranch(path)
+            throw exc
+        }
+    }
+
+    private fun addNode(path: String, data: ChildData) {
+        nodes[path] = PolledNode(data, data.stat.pzxid)
+        if (path != rootPath) {
+            nodes[ZKPaths.getPathAndNode(path).path]?.children?.add(ZKPaths.getNodeFromPath(path))
+        }
+        listener.onNodeChanged(path, null, data)
+    }
+
+    private fun removeBranch(path: String) {
+        val node = nodes.remove(path) ?: return
+        node.children.forEach { removeBranch(ZKPaths.makePath(path, it)) }
+        if (path != rootPath) {
+            nodes[ZKPaths.getPathAndNode(path).path]?.children?.remove(ZKPaths.getNodeFromPath(path))
+        }
+        listener.onNodeChanged(path, node.data, null)
+    }
+
+    private fun isReserved(nodeName: String) = nodeName.startsWith(ZkChunkManifest.RESERVED_NODE_PREFIX)
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+}
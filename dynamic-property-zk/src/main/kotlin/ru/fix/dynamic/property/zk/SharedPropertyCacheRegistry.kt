@@ -0,0 +1,140 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Keeps single [ZkPropertyCache] per curator client, root path, cache mode and polling interval
+ * for all [ZkDynamicPropertySource] instances within the application.
+ * Underlying cache is created by the first source and closed when the last source is closed.
+ * Each source gets its own handle with its own listener, so sources keep their own subscriptions.
+ */
+internal object SharedPropertyCacheRegistry {
+
+    private data class Key(
+        val curatorFramework: CuratorFramework,
+        val rootPath: String,
+        val cacheMode: ZkCacheMode,
+        val pollingInterval: Duration
+    )
+
+    /**
+     * Guarded by this
+     */
+    private val caches = HashMap<Key, SharedCache>()
+
+    private class SharedCache(key: Key) : ZkPropertyCache.Listener {
+        val listeners = CopyOnWriteArrayList<ZkPropertyCache.Listener>()
+
+        val cache = ZkPropertyCache.create(
+            key.cacheMode,
+            key.curatorFramework,
+            key.rootPath,
+            key.pollingInterval,
+            this
+        )
+
+        /**
+         * Guarded by [SharedPropertyCacheRegistry]
+         */
+        var references = 0
+
+        private val lock = Any()
+
+        /**
+         * Guarded by [lock]
+         */
+        private var started = false
+
+        /**
+         * Guarded by [lock]
+         */
+        private var initialized = false
+
+        fun attach(listener: ZkPropertyCache.Listener) {
+            val (startCache, alreadyInitialized) = synchronized(lock) {
+                listeners.add(listener)
+                val startCache = !started
+                started = true
+                Pair(startCache, initialized)
+            }
+            if (startCache) {
+                cache.start()
+            }
+            if (alreadyInitialized) {
+                listener.onInitialized()
+            }
+        }
+
+        override fun onNodeChanged(path: String, oldData: ChildData?, data: ChildData?) {
+            listeners.forEach { it.onNodeChanged(path, oldData, data) }
+        }
+
+        override fun onInitialized() {
+            val initializedListeners = synchronized(lock) {
+                initialized = true
+                listeners.toList()
+            }
+            initializedListeners.forEach { it.onInitialized() }
+        }
+    }
+
+    private class Handle(
+        private val key: Key,
+        private val sharedCache: SharedCache,
+        private val listener: ZkPropertyCache.Listener
+    ) : ZkPropertyCache {
+
+        private val closed = AtomicBoolean()
+
+        override fun start() {
+            sharedCache.attach(listener)
+        }
+
+        override fun getCurrentData(path: String): ChildData? = sharedCache.cache.getCurrentData(path)
+
+        override fun isCached(path: String): Boolean = sharedCache.cache.isCached(path)
+
+        override fun cachedPaths(): Collection<String> = sharedCache.cache.cachedPaths()
+
+        override fun close() {
+            if (closed.compareAndSet(false, true)) {
+                sharedCache.listeners.remove(listener)
+                release(key, sharedCache)
+            }
+        }
+    }
+
+    @Synchronized
+    fun acquire(
+        cacheMode: ZkCacheMode,
+        curatorFramework: CuratorFramework,
+        rootPath: String,
+        pollingInterval: Duration,
+        listener: ZkPropertyCache.Listener
+    ): ZkPropertyCache {
+        val key = Key(
+            curatorFramework,
+            rootPath,
+            cacheMode,
+            if (cacheMode == ZkCacheMode.POLLING) pollingInterval else Duration.ZERO
+        )
+        val sharedCache = caches.getOrPut(key) { SharedCache(key) }
+        sharedCache.references++
+        return Handle(key, sharedCache, listener)
+    }
+
+    @Synchronized
+    private fun release(key: Key, sharedCache: SharedCache) {
+        if (--sharedCache.references == 0) {
+            caches.remove(key)
+            sharedCache.cache.close()
+        }
+    }
+
+    @Synchronized
+    fun sharedCacheCount(): Int = caches.size
+}
@@ -0,0 +1,81 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.curator.framework.recipes.cache.TreeCache
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent
+import org.apache.curator.framework.recipes.cache.TreeCacheListener
+import org.apache.curator.framework.recipes.cache.TreeCacheSelector
+import org.apache.curator.utils.ZKPaths
+import org.apache.logging.log4j.kotlin.Logging
+import java.util.*
+
+/**
+ * [ZkPropertyCache] based on Curator [TreeCache]
+ */
+internal class TreeCachePropertyCache(
+    curatorFramework: CuratorFramework,
+    private val rootPath: String,
+    private val listener: ZkPropertyCache.Listener
+) : ZkPropertyCache {
+
+    companion object : Logging
+
+    private val treeCache = TreeCache.newBuilder(curatorFramework, rootPath)
+        .setSelector(object : TreeCacheSelector {
+            override fun traverseChildren(fullPath: String) = true
+
+            // chunks of large values are read on demand
+            override fun acceptChild(fullPath: String) =
+                !ZKPaths.getNodeFromPath(fullPath).startsWith(ZkChunkManifest.RESERVED_NODE_PREFIX)
+        })
+        .build()
+
+    init {
+        treeCache.listenable.addListener(TreeCacheListener { _, treeCacheEvent ->
+
+            logger.trace { "Received TreeCache event: $treeCacheEvent" }
+
+            when (treeCacheEvent.type!!) {
+                TreeCacheEvent.Type.NODE_ADDED,
+                TreeCacheEvent.Type.NODE_UPDATED -> {
+                    listener.onNodeChanged(treeCacheEvent.data.path, treeCacheEvent.oldData, treeCacheEvent.data)
+                }
+                TreeCacheEvent.Type.NODE_REMOVED -> {
+                    listener.onNodeChanged(treeCacheEvent.data.path, treeCacheEvent.data, null)
+                }
+                TreeCacheEvent.Type.INITIALIZED -> {
+                    listener.onInitialized()
+                }
+                TreeCacheEvent.Type.CONNECTION_LOST,
+                TreeCacheEvent.Type.CONNECTION_SUSPENDED,
+                TreeCacheEvent.Type.CONNECTION_RECONNECTED -> {
+                    // connection state is tracked by ZkDynamicPropertySource through CuratorFramework
+                }
+            }
+        })
+    }
+
+    override fun start() {
+        treeCache.start()
+    }
+
+    override fun getCurrentData(path: String): ChildData? = treeCache.getCurrentData(path)
+
+    override fun cachedPaths(): Collection<String> {
+        val paths = ArrayList<String>()
+        val pendingPaths = ArrayDeque<String>()
+        pendingPaths.add(rootPath)
+        while (pendingPaths.isNotEmpty()) {
+            val path = pendingPaths.poll()
+            val children = treeCache.getCurrentChildren(path) ?: continue
+            paths.add(path)
+            children.keys.forEach { pendingPaths.add(ZKPaths.makePath(path, it)) }
+        }
+        return paths
+    }
+
+    override fun close() {
+        treeCache.close()
+    }
+}
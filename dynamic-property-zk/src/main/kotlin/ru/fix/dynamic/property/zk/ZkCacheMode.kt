@@ -0,0 +1,47 @@
+package ru.fix.dynamic.property.zk
+
+/**
+ * How [ZkDynamicPropertySource] keeps local copy of zookeeper config tree.
+ * Source is built on Curator 5, which does not support ZooKeeper 3.4 servers,
+ * so every mode requires ZooKeeper 3.5+ server and some modes require newer one.
+ */
+enum class ZkCacheMode {
+    /**
+     * Curator `TreeCache`.
+     * Sets data and child watch on every node of the tree.
+     * Re-reads data of the whole tree after reconnect,
+     * nodes that turn out to be unchanged do not notify subscribers.
+     * Requires ZooKeeper 3.5+ server.
+     */
+    TREE_CACHE,
+
+    /**
+     * Curator `CuratorCache` based on single persistent recursive watch on the root node.
+     * Puts much less watcher pressure on ZooKeeper ensemble for big trees,
+     * since there is a single watch to restore after reconnect.
+     * Still re-reads data of the whole tree after reconnect,
+     * nodes that turn out to be unchanged do not notify subscribers.
+     * Requires ZooKeeper 3.6+ server.
+     */
+    CURATOR_CACHE,
+
+    /**
+     * Caches and watches only nodes that have live subscriptions.
+     * Node is loaded on demand when the first subscription for the property is created.
+     * Watch on the node is removed when the last subscription is closed or garbage collected.
+     * Startup time is proportional to the number of properties the application uses
+     * rather than to the size of the config tree.
+     * After reconnect only stats of tracked nodes are read,
+     * data is reloaded only for nodes that were modified.
+     * Watch removal requires ZooKeeper 3.5+ server.
+     */
+    LAZY,
+
+    /**
+     * Does not set any watches and polls the tree with polling interval of the source instead.
+     * Each poll reads stats of all nodes, while data and children are read only for nodes that changed.
+     * Suits large fleets of clients that could tolerate config lag up to polling interval:
+     * removes watch pressure from ZooKeeper ensemble at the cost of notification latency.
+     */
+    POLLING
+}
@@ -0,0 +1,159 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.curator.utils.ZKPaths
+import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+import java.time.Duration
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Background anti-entropy check of the local cache of [ZkDynamicPropertySource].
+ * Cache could miss or reorder events under session churn and serve stale config until restart.
+ *
+ * Verifier rolls over all cached nodes and compares each of them against zookeeper,
+ * at most [checksPerSecond] single read checks per second in single low priority daemon thread.
+ * Node is suspected if zookeeper node is modified later than the cached one, node was removed,
+ * or node has children that are not cached.
+ * Suspected node is divergent if the cache still does not reflect zookeeper after [gracePeriod],
+ * so events that are on the way to the cache are not reported.
+ *
+ * @param cachedPaths absolute paths of cached nodes
+ * @param cachedData cached node data, null if node is not cached
+ * @param checkChildren whether cache keeps all children of cached nodes
+ * @param onDivergence receives actual data of divergent node, null if node does not exist
+ */
+internal class ZkCacheVerifier(
+    private val curatorFramework: CuratorFramework,
+    private val rootPath: String,
+    private val cachedPaths: () -> Collection<String>,
+    private val cachedData: (String) -> ChildData?,
+    private val checkChildren: Boolean,
+    checksPerSecond: Int,
+    private val gracePeriod: Duration,
+    private val onDivergence: (String, ChildData?) -> Unit
+) : AutoCloseable {
+
+    companion object : Logging {
+        /**
+         * Checks are scheduled with microsecond period, so higher rate could not be served
+         */
+        const val MAX_CHECKS_PER_SECOND = 1_000_000
+    }
+
+    init {
+        require(checksPerSecond in 1..MAX_CHECKS_PER_SECOND) {
+            "Checks per second should be in range from 1 to $MAX_CHECKS_PER_SECOND: $checksPerSecond"
+        }
+    }
+
+    private val checkPeriodMicros = TimeUnit.SECONDS.toMicros(1) / checksPerSecond
+
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "zk-property-cache-verifier").apply {
+            isDaemon = true
+            priority = Thread.MIN_PRIORITY
+        }
+    }
+
+    /**
+     * Nodes left to check in current round
+     */
+    private val pendingPaths = ConcurrentLinkedQueue<String>()
+
+    private val divergences = AtomicLong()
+
+    /**
+     * How many divergent nodes were found since start
+     */
+    val divergenceCount: Long
+        get() = divergences.get()
+
+    fun start() {
+        executor.scheduleAtFixedRate(
+            { runQuietly { checkNext() } },
+            checkPeriodMicros,
+            checkPeriodMicros,
+            TimeUnit.MICROSECONDS
+        )
+    }
+
+    private fun runQuietly(check: () -> Unit) {
+        try {
+            if (curatorFramework.zookeeperClient.isConnected) {
+                check()
+            }
+        } catch (exc: Exception) {
+            // scheduled task that throws is not executed anymore
+            logger.debug("Zk property cache check failed", exc)
+        }
+    }
+
+    private fun checkNext() {
+        val path = pendingPaths.poll()
+        if (path == null) {
+            pendingPaths.addAll(cachedPaths().filter { !isReservedNode(it) }.shuffled())
+            return
+        }
+        val cached = cachedData(path) ?: return
+
+        val stat = Stat()
+        val children = try {
+            curatorFramework.children.storingStatIn(stat).forPath(path)
+        } catch (exc: KeeperException.NoNodeException) {
+            scheduleConfirmation(path, emptyList())
+            return
+        }
+        val missingChildren = if (checkChildren)
+            children.map { ZKPaths.makePath(path, it) }.filter { !isReservedNode(it) && cachedData(it) == null }
+        else
+            emptyList()
+        if (stat.mzxid > cached.stat.mzxid || missingChildren.isNotEmpty()) {
+            scheduleConfirmation(path, missingChildren)
+        }
+    }
+
+    private fun scheduleConfirmation(path: String, missingChildren: List<String>) {
+        logger.debug { "Zk node $path is suspected to be stale in local cache, confirming in $gracePeriod" }
+        executor.schedule(
+            { runQuietly { (listOf(path) + missingChildren).forEach { confirm(it) } } },
+            gracePeriod.toMillis(),
+            TimeUnit.MILLISECONDS
+        )
+    }
+
+    private fun confirm(path: String) {
+        val cached = cachedData(path)
+        val stat = Stat()
+        val actual = try {
+            ChildData(path, stat, curatorFramework.data.storingStatIn(stat).forPath(path))
+        } catch (exc: KeeperException.NoNodeException) {
+            null
+        }
+        val diverged = if (actual == null)
+            cached != null
+        else
+            cached == null || actual.stat.mzxid > cached.stat.mzxid
+        if (diverged) {
+            divergences.incrementAndGet()
+            logger.warn {
+                "Local cache diverged from zk node $path: " +
+                        "cached mzxid ${cached?.stat?.mzxid}, actual mzxid ${actual?.stat?.mzxid}"
+            }
+            onDivergence(path, actual)
+        }
+    }
+
+    private fun isReservedNode(path: String) =
+        path.startsWith("$rootPath/") &&
+                ZkChunkManifest.isReservedProperty(path.substring(rootPath.length + 1))
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+}
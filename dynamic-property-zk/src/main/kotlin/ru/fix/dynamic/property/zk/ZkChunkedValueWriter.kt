@@ -0,0 +1,171 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+
+/**
+ * Writes property values of [ZkDynamicPropertySource] that could exceed zookeeper node size limit.
+ * Value is encoded by [ZkPropertyValueCodec] and, if it is still larger than [chunkSize],
+ * split into chunk nodes under `<rootPath>/.chunks/`, while property node keeps only a manifest.
+ * Manifest is switched to the new set of chunks by single conditional update of the property node,
+ * so readers never observe partially updated value.
+ * Each write creates chunks under new sequential version node, so concurrent writers never share chunks:
+ * writer that lost the conditional update removes only its own version.
+ * ```
+ * val writer = ZkChunkedValueWriter(curator, "/my-application/config")
+ * writer.write("routing.table", routingTableJson)
+ * ```
+ *
+ * @param rootPath config root of [ZkDynamicPropertySource]
+ * @param chunkSize max size of single chunk node in bytes, should be less than zookeeper `jute.maxbuffer`
+ * @param compressionThreshold see [ZkPropertyValueCodec.encode]
+ */
+class ZkChunkedValueWriter @JvmOverloads constructor(
+    private val curatorFramework: CuratorFramework,
+    rootPath: String,
+    private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+    private val compressionThreshold: Int = ZkPropertyValueCodec.DEFAULT_COMPRESSION_THRESHOLD
+) {
+    companion object : Logging {
+        const val DEFAULT_CHUNK_SIZE = 512 * 1024
+    }
+
+    init {
+        require(chunkSize > 0) { "Chunk size should be positive: $chunkSize" }
+    }
+
+    private val rootPath = rootPath.removeSuffix("/")
+
+    /**
+     * Creates or updates the property.
+     *
+     * @throws KeeperException.BadVersionException or [KeeperException.NodeExistsException]
+     * if property was concurrently updated by another writer,
+     * [KeeperException.NoNodeException] if that writer also removed chunks of this write
+     */
+    fun write(propertyName: String, value: String) {
+        require(!ZkChunkManifest.isReservedProperty(propertyName)) {
+            "Property name $propertyName contains reserved node"
+        }
+        val propertyPath = "$rootPath/$propertyName"
+        val payload = ZkPropertyValueCodec.encode(value, compressionThreshold)
+
+        val stat = Stat()
+        val exists = try {
+            curatorFramework.data.storingStatIn(stat).forPath(propertyPath)
+            true
+        } catch (exc: KeeperException.NoNodeException) {
+            false
+        }
+
+        if (payload.size <= chunkSize) {
+            setData(propertyPath, payload, exists, stat)
+        } else {
+            val versionPath = createVersion(propertyName)
+            try {
+                val manifest = writeChunks(propertyName, versionPath, payload)
+                setData(propertyPath, manifest.encode(), exists, stat)
+            } catch (exc: KeeperException.BadVersionException) {
+                deleteQuietly(versionPath)
+                throw exc
+            } catch (exc: KeeperException.NodeExistsException) {
+                deleteQuietly(versionPath)
+                throw exc
+            }
+            // other failures could happen after the manifest is switched, version is removed by the next write
+        }
+        removeStaleChunks(propertyName)
+    }
+
+    /**
+     * @return path of new version node, sequential node gives version that is unique among concurrent writers
+     */
+    private fun createVersion(propertyName: String): String =
+        curatorFramework.create()
+            .creatingParentsIfNeeded()
+            .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+            .forPath(ZkChunkManifest.versionPathPrefix(rootPath, propertyName))
+
+    private fun setData(propertyPath: String, data: ByteArray, exists: Boolean, stat: Stat) {
+        if (exists) {
+            curatorFramework.setData().withVersion(stat.version).forPath(propertyPath, data)
+        } else {
+            curatorFramework.create().creatingParentsIfNeeded().forPath(propertyPath, data)
+        }
+    }
+
+    private fun writeChunks(propertyName: String, versionPath: String, payload: ByteArray): ZkChunkManifest {
+        val manifest = ZkChunkManifest(
+            version = ZkChunkManifest.parseVersion(versionPath),
+            chunkCount = (payload.size + chunkSize - 1) / chunkSize,
+            length = payload.size,
+            checksum = ZkChunkManifest.checksum(payload)
+        )
+        for (index in 0 until manifest.chunkCount) {
+            val from = index * chunkSize
+            val to = minOf(from + chunkSize, payload.size)
+            curatorFramework.create()
+                .forPath(manifest.chunkPath(rootPath, propertyName, index), payload.copyOfRange(from, to))
+        }
+        return manifest
+    }
+
+    /**
+     * Removes chunks that are not referenced by current manifest.
+     * Readers that are still reading removed chunks re-read the manifest.
+     *
+     * Version created after the current value of the property node was set could belong to concurrent writer
+     * that is going to switch manifest to it, so such version is kept.
+     * Version created before could not be referenced anymore:
+     * its writer read the property node before the current value was set and its conditional update fails.
+     */
+    private fun removeStaleChunks(propertyName: String) {
+        val chunksPath = ZkChunkManifest.chunksPath(rootPath, propertyName)
+        val propertyStat = Stat()
+        val currentData = try {
+            curatorFramework.data.storingStatIn(propertyStat).forPath("$rootPath/$propertyName")
+        } catch (exc: KeeperException.NoNodeException) {
+            // property was removed concurrently, chunks are removed by the next write
+            return
+        }
+        val currentVersion = if (ZkPropertyValueCodec.isChunkManifest(currentData))
+            ZkChunkManifest.parse(currentData).versionNode()
+        else
+            null
+
+        val versions = try {
+            curatorFramework.children.forPath(chunksPath)
+        } catch (exc: KeeperException.NoNodeException) {
+            return
+        }
+        versions.filter { it != currentVersion }.forEach { version ->
+            val versionStat = curatorFramework.checkExists().forPath("$chunksPath/$version") ?: return@forEach
+            if (versionStat.czxid < propertyStat.mzxid) {
+                deleteQuietly("$chunksPath/$version")
+            }
+        }
+        if (currentVersion == null) {
+            try {
+                // kept if concurrent writer already created its version
+                curatorFramework.delete().forPath(chunksPath)
+            } catch (exc: KeeperException.NoNodeException) {
+                // already removed
+            } catch (exc: KeeperException.NotEmptyException) {
+                // belongs to concurrent writer
+            }
+        }
+    }
+
+    private fun deleteQuietly(path: String) {
+        try {
+            curatorFramework.delete().deletingChildrenIfNeeded().forPath(path)
+        } catch (exc: KeeperException.NoNodeException) {
+            // already removed
+        } catch (exc: Exception) {
+            logger.warn("Failed to remove stale chunks $path", exc)
+        }
+    }
+}
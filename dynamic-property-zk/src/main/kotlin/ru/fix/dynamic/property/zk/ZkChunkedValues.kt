@@ -0,0 +1,179 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.utils.ZKPaths
+import org.apache.zookeeper.KeeperException
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.URLEncoder
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.CRC32
+
+/**
+ * Layout of values split into chunks.
+ * Property node keeps manifest, chunks are kept in immutable nodes
+ * `<root>/.chunks/<url encoded property name>/v<manifest version>/<chunk index>`.
+ * Version node is sequential, so each write gets its own version.
+ * Chunks of new version are written before manifest is switched to it,
+ * so manifest always points to complete set of chunks.
+ * ```
+ * 0  header       0x00 'D' 'P' 'M'
+ * 4  version      long
+ * 12 chunk count  int
+ * 16 length       int   total length of encoded value
+ * 20 checksum     int   CRC32 of encoded value
+ * ```
+ * Assembled chunks contain value encoded by [ZkPropertyValueCodec], so large value could also be compressed.
+ */
+internal class ZkChunkManifest(
+    val version: Long,
+    val chunkCount: Int,
+    val length: Int,
+    val checksum: Int
+) {
+    companion object {
+        /**
+         * Nodes which names start with this prefix are reserved and are not properties
+         */
+        const val RESERVED_NODE_PREFIX = "."
+        const val CHUNKS_NODE = ".chunks"
+        private const val VERSION_NODE_PREFIX = "v"
+
+        fun parse(data: ByteArray): ZkChunkManifest {
+            require(ZkPropertyValueCodec.isChunkManifest(data)) { "Node data is not a chunk manifest" }
+            val body = ByteArrayInputStream(
+                data,
+                ZkPropertyValueCodec.HEADER_SIZE,
+                data.size - ZkPropertyValueCodec.HEADER_SIZE
+            )
+            DataInputStream(body).use { input ->
+                return ZkChunkManifest(
+                    version = input.readLong(),
+                    chunkCount = input.readInt(),
+                    length = input.readInt(),
+                    checksum = input.readInt()
+                )
+            }
+        }
+
+        fun checksum(data: ByteArray): Int = CRC32().apply { update(data) }.value.toInt()
+
+        fun chunksPath(rootPath: String, propertyName: String): String =
+            "$rootPath/$CHUNKS_NODE/${URLEncoder.encode(propertyName, StandardCharsets.UTF_8.name())}"
+
+        /**
+         * Path to create sequential version node with
+         */
+        fun versionPathPrefix(rootPath: String, propertyName: String): String =
+            "${chunksPath(rootPath, propertyName)}/$VERSION_NODE_PREFIX"
+
+        /**
+         * @param versionPath path of sequential version node
+         */
+        fun parseVersion(versionPath: String): Long =
+            ZKPaths.getNodeFromPath(versionPath).removePrefix(VERSION_NODE_PREFIX).toLong()
+
+        /**
+         * @return true if property name or any of its parents is reserved node
+         */
+        fun isReservedProperty(propertyName: String): Boolean =
+            propertyName.split('/').any { it.startsWith(RESERVED_NODE_PREFIX) }
+    }
+
+    /**
+     * Name of the version node in the same format as zookeeper names sequential nodes
+     */
+    fun versionNode() = VERSION_NODE_PREFIX + String.format("%010d", version)
+
+    fun versionPath(rootPath: String, propertyName: String) = "${chunksPath(rootPath, propertyName)}/${versionNode()}"
+
+    fun chunkPath(rootPath: String, propertyName: String, index: Int) =
+        "${versionPath(rootPath, propertyName)}/$index"
+
+    fun encode(): ByteArray {
+        val output = ByteArrayOutputStream()
+        output.write(ZkPropertyValueCodec.HEADER_PREFIX)
+        output.write(ZkPropertyValueCodec.CHUNK_MANIFEST_ID.toInt())
+        DataOutputStream(output).use { data ->
+            data.writeLong(version)
+            data.writeInt(chunkCount)
+            data.writeInt(length)
+            data.writeInt(checksum)
+        }
+        return output.toByteArray()
+    }
+}
+
+/**
+ * Reads property values of [ZkDynamicPropertySource] that could be split into chunks.
+ * Chunks are copied directly into single buffer of the value size.
+ * Keeps the last assembled value of each chunked property, so subscriptions do not read chunks again
+ * until manifest version changes.
+ */
+internal class ZkChunkedValueReader(
+    private val curatorFramework: CuratorFramework,
+    private val rootPath: String
+) {
+    companion object {
+        private const val MAX_READ_ATTEMPTS = 10
+    }
+
+    private class AssembledValue(val version: Long, val value: String)
+
+    private val assembledValues = ConcurrentHashMap<String, AssembledValue>()
+
+    /**
+     * @param data content of the property node: plain, compressed value or chunk manifest
+     */
+    fun read(propertyName: String, data: ByteArray): String {
+        var current = data
+        for (attempt in 1..MAX_READ_ATTEMPTS) {
+            if (!ZkPropertyValueCodec.isChunkManifest(current)) {
+                assembledValues.remove(propertyName)
+                return ZkPropertyValueCodec.decode(current)
+            }
+            val manifest = ZkChunkManifest.parse(current)
+            assembledValues[propertyName]
+                ?.takeIf { it.version == manifest.version }
+                ?.let { return it.value }
+            try {
+                val value = ZkPropertyValueCodec.decode(readChunks(propertyName, manifest))
+                assembledValues[propertyName] = AssembledValue(manifest.version, value)
+                return value
+            } catch (exc: KeeperException.NoNodeException) {
+                // writer switched manifest to a newer version and removed chunks of this one
+                current = curatorFramework.data.forPath("$rootPath/$propertyName")
+            }
+        }
+        throw IllegalStateException(
+            "Failed to read chunks of property $propertyName within $MAX_READ_ATTEMPTS attempts"
+        )
+    }
+
+    private fun readChunks(propertyName: String, manifest: ZkChunkManifest): ByteArray {
+        val buffer = ByteArray(manifest.length)
+        var offset = 0
+        for (index in 0 until manifest.chunkCount) {
+            val chunk = curatorFramework.data.forPath(manifest.chunkPath(rootPath, propertyName, index))
+            check(offset + chunk.size <= buffer.size) {
+                "Chunks of property $propertyName exceed length ${manifest.length} declared by manifest"
+            }
+            System.arraycopy(chunk, 0, buffer, offset, chunk.size)
+            offset += chunk.size
+        }
+        check(offset == buffer.size && ZkChunkManifest.checksum(buffer) == manifest.checksum) {
+            "Chunks of property $propertyName do not match manifest version ${manifest.version}"
+        }
+        return buffer
+    }
+
+    /**
+     * Property was removed
+     */
+    fun forget(propertyName: String) {
+        assembledValues.remove(propertyName)
+    }
+}
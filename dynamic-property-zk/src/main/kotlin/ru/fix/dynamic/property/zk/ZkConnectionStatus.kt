@@ -0,0 +1,27 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.state.ConnectionState
+import java.time.Duration
+import java.time.Instant
+
+/**
+ * Connection state of [ZkDynamicPropertySource] and freshness of the config it serves.
+ *
+ * @param connectionState last connection state reported by Curator, null if connection was not established yet
+ * @param staleSince since when config could be out of date: source lost connection or did not load the tree yet.
+ *                   Null if config is fresh.
+ */
+data class ZkConnectionStatus(
+    val connectionState: ConnectionState?,
+    val staleSince: Instant?
+) {
+    val isStale: Boolean
+        get() = staleSince != null
+
+    /**
+     * @return how long config is stale or [Duration.ZERO] if config is fresh
+     */
+    @JvmOverloads
+    fun staleDuration(now: Instant = Instant.now()): Duration =
+        staleSince?.let { Duration.between(it, now) } ?: Duration.ZERO
+}
@@ -0,0 +1,36 @@
+package ru.fix.dynamic.property.zk
+
+import ru.fix.aggregating.profiler.Profiler
+import ru.fix.dynamic.property.api.DynamicProperty
+
+/**
+ * Publishes [ZkDynamicPropertySource.connectionStatus] as profiler indicators:
+ * ```
+ * <prefix>.connected  1 if source is connected to zookeeper, 0 otherwise
+ * <prefix>.stale.ms   how long config is stale, 0 if config is fresh
+ * ```
+ * Indicators are detached on [close].
+ */
+class ZkConnectionStatusIndicators @JvmOverloads constructor(
+    private val connectionStatus: DynamicProperty<ZkConnectionStatus>,
+    private val profiler: Profiler,
+    prefix: String = "dynamic.property.zk"
+) : AutoCloseable {
+
+    private val connectedIndicator = "$prefix.connected"
+    private val staleIndicator = "$prefix.stale.ms"
+
+    init {
+        profiler.attachIndicator(connectedIndicator) {
+            if (connectionStatus.get().connectionState?.isConnected == true) 1L else 0L
+        }
+        profiler.attachIndicator(staleIndicator) {
+            connectionStatus.get().staleDuration().toMillis()
+        }
+    }
+
+    override fun close() {
+        profiler.detachIndicator(connectedIndicator)
+        profiler.detachIndicator(staleIndicator)
+    }
+}
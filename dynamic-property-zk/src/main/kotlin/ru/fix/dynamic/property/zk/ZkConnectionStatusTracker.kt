@@ -0,0 +1,48 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.state.ConnectionState
+import ru.fix.dynamic.property.api.AtomicProperty
+import ru.fix.dynamic.property.api.DynamicProperty
+import java.time.Clock
+
+/**
+ * Tracks [ZkConnectionStatus] of [ZkDynamicPropertySource].
+ * Config is stale until the tree is loaded and while connection is suspended or lost.
+ */
+internal class ZkConnectionStatusTracker(
+    initialState: ConnectionState?,
+    private val clock: Clock
+) {
+    private val statusProperty = AtomicProperty(ZkConnectionStatus(initialState, clock.instant()))
+
+    val status: DynamicProperty<ZkConnectionStatus>
+        get() = statusProperty
+
+    /**
+     * Guarded by this
+     */
+    private var initialized = false
+
+    @Synchronized
+    fun onConnectionStateChanged(state: ConnectionState) {
+        update(state)
+    }
+
+    @Synchronized
+    fun onInitialized() {
+        initialized = true
+        update(statusProperty.get().connectionState)
+    }
+
+    private fun update(state: ConnectionState?) {
+        val current = statusProperty.get()
+        val fresh = initialized && state?.isConnected == true
+        val updated = ZkConnectionStatus(
+            connectionState = state,
+            staleSince = if (fresh) null else current.staleSince ?: clock.instant()
+        )
+        if (updated != current) {
+            statusProperty.set(updated)
+        }
+    }
+}
@@ -3,32 +3,73 @@ package ru.fix.dynamic.property.zk
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.CuratorFrameworkFactory
 import org.apache.curator.framework.imps.CuratorFrameworkState
-import org.apache.curator.framework.recipes.cache.TreeCache
-import org.apache.curator.framework.recipes.cache.TreeCacheEvent
-import org.apache.curator.framework.recipes.cache.TreeCacheListener
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.curator.framework.state.ConnectionState
+import org.apache.curator.framework.state.ConnectionStateListener
 import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.data.Stat
+import ru.fix.dynamic.property.api.DynamicProperty
 import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
 import ru.fix.dynamic.property.api.source.DynamicPropertySource
 import ru.fix.dynamic.property.api.source.OptionalDefaultValue
-import ru.fix.dynamic.property.std.source.PropertySourceAccessor
 import ru.fix.dynamic.property.std.source.PropertySourcePublisher
+import ru.fix.dynamic.property.std.source.VersionedPropertySourceAccessor
+import ru.fix.dynamic.property.std.source.VersionedPropertyValue
 import ru.fix.stdlib.reference.ReferenceCleaner
-import java.nio.charset.StandardCharsets
+import java.lang.management.ManagementFactory
+import java.net.InetAddress
+import java.nio.file.Path
+import java.time.Clock
 import java.time.Duration
 import java.util.*
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
-import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Consumer
 import kotlin.concurrent.withLock
 
 
 /**
- * Implementation of [DynamicPropertySource] that uses Zookeeper [TreeCache]
+ * Implementation of [DynamicPropertySource] that keeps local copy of Zookeeper config tree
  * and provides subscriptions to property change events.
+ * Local copy is kept by Curator `TreeCache`, `CuratorCache` or polled without watches depending on [ZkCacheMode].
+ * Sources created over the same [curatorFramework] and root path share single local copy of the tree,
+ * unless source keeps snapshot or uses [ZkCacheMode.LAZY] mode.
  *
  * During initialization constuctor will block and wait until all properties will be loaded from zookeeper to local cache.
+ * In [ZkCacheMode.LAZY] mode properties are loaded on demand during subscription and constructor does not block.
+ * Use [createAsync] to get the source without waiting for the tree to load and [readiness] to find out when it is loaded.
+ *
+ * If [snapshotPath] is specified, source persists local copy of the tree to the snapshot file.
+ * On the next start, when the snapshot file is present, constructor does not block:
+ * source serves values from the snapshot and reconciles them against zookeeper in background.
+ * Subscribers are notified only about properties whose values differ from the snapshot.
+ *
+ * Node values could be compressed by [ZkPropertyValueCodec], source decompresses them before unmarshalling.
+ * Values that exceed zookeeper node size limit could be split into chunks by [ZkChunkedValueWriter],
+ * source assembles them and switches to the new value only when all its chunks are written.
+ * Large JSON values could be updated by JSON Patches through [ZkJsonPatchWriter],
+ * source applies new patches to the document it already has.
+ * Nodes which names start with '.' are reserved for chunks and other service data and are not properties.
+ *
+ * Values published with [ZkRolloutPolicy] by [ZkPropertyPublisher] are applied by this source
+ * at the moment defined by the policy for [rolloutInstanceId], until then previous value is served.
+ * Subscribers are notified about the switch as about regular change.
+ * Apply moment is counted from the node modification time, so it is affected by clock skew
+ * between the application host and zookeeper servers.
+ *
+ * If [consistencyCheckRate] is positive, source verifies local copy of the tree against zookeeper in background,
+ * see [ZkCacheVerifier]. Divergent nodes are re-read from zookeeper, their subscribers are notified as usual
+ * and [detectedDivergences] is increased.
+ *
+ * Use [connectionStatus] to find out whether served config could be out of date,
+ * e.g. to switch application to conservative mode when config is stale for too long.
+ * [ZkConnectionStatusIndicators] publishes the status as profiler indicators.
  *
  * Use [CuratorFrameworkFactory] in order to get curatorFramework instance.
  * ```
@@ -38,30 +79,143 @@ import kotlin.concurrent.withLock
  * @param curatorFramework Ready to use curator framework
  * @param zookeeperConfigPath Root path where ZkDynamicPropertySource will store properties.
  *                            E.g. '/my-application/config'
- * @param initializationTimeout how log to wait until all property values will be loaded
+ * @param initializationTimeout how log to wait until all property values will be loaded.
+ *                              For the source created by [createAsync] it limits how long
+ *                              [ZkPendingSubscriptionPolicy.AWAIT_LOADED_VALUE] subscription could wait.
+ * @param cacheMode how to keep local copy of config tree
+ * @param snapshotPath local file to persist config tree to, e.g. `/var/lib/my-application/config.snapshot`.
+ *                     Snapshot is not kept if null. Not supported in [ZkCacheMode.LAZY] mode.
+ * @param notificationThreads how many threads deliver change notifications to property listeners.
+ *                            Notifications of the same property are always delivered serially by the same thread.
+ * @param consistencyCheckRate how many nodes per second are checked against zookeeper in background.
+ *                             Each check costs single zookeeper read. Check is disabled if zero.
+ *                             Should not exceed [ZkCacheVerifier.MAX_CHECKS_PER_SECOND].
+ * @param pollingInterval how often the tree is polled in [ZkCacheMode.POLLING] mode
+ * @param rolloutInstanceId identifies this instance in rollouts of [ZkRolloutPolicy], should be stable across restarts.
+ *                          Host name by default.
  */
-class ZkDynamicPropertySource(
-    private val curatorFramework: CuratorFramework,
+class ZkDynamicPropertySource private constructor(
+    internal val curatorFramework: CuratorFramework,
     zookeeperConfigPath: String,
     marshaller: DynamicPropertyMarshaller,
-    initializationTimeout: Duration
+    private val initializationTimeout: Duration,
+    cacheMode: ZkCacheMode,
+    snapshotPath: Path?,
+    notificationThreads: Int,
+    consistencyCheckRate: Int,
+    pollingInterval: Duration,
+    private val rolloutInstanceId: String,
+    /**
+     * Null if constructor waits for initialization
+     */
+    private val pendingSubscriptionPolicy: ZkPendingSubscriptionPolicy?
 ) : DynamicPropertySource {
 
-    companion object : Logging
+    @JvmOverloads
+    constructor(
+        curatorFramework: CuratorFramework,
+        zookeeperConfigPath: String,
+        marshaller: DynamicPropertyMarshaller,
+        initializationTimeout: Duration,
+        cacheMode: ZkCacheMode = ZkCacheMode.TREE_CACHE,
+        snapshotPath: Path? = null,
+        notificationThreads: Int = DEFAULT_NOTIFICATION_THREADS,
+        consistencyCheckRate: Int = 0,
+        pollingInterval: Duration = DEFAULT_POLLING_INTERVAL,
+        rolloutInstanceId: String = defaultRolloutInstanceId()
+    ) : this(
+        curatorFramework,
+        zookeeperConfigPath,
+        marshaller,
+        initializationTimeout,
+        cacheMode,
+        snapshotPath,
+        notificationThreads,
+        consistencyCheckRate,
+        pollingInterval,
+        rolloutInstanceId,
+        null
+    )
 
-    private val readTreeAndProcessNotificationLock = ReentrantLock()
+    companion object : Logging {
+        private const val DEFAULT_READ_PARALLELISM = 16
+        private val DEFAULT_READ_TIMEOUT = Duration.ofMinutes(2)
+        private val SNAPSHOT_WRITE_DELAY = Duration.ofSeconds(1)
+        const val DEFAULT_NOTIFICATION_THREADS = 4
+        private val DIVERGENCE_GRACE_PERIOD = Duration.ofSeconds(10)
+
+        @JvmField
+        val DEFAULT_POLLING_INTERVAL: Duration = Duration.ofMinutes(1)
+
+        /**
+         * @return host name or JVM name if host name could not be resolved
+         */
+        @JvmStatic
+        fun defaultRolloutInstanceId(): String =
+            try {
+                InetAddress.getLocalHost().hostName
+            } catch (exc: Exception) {
+                ManagementFactory.getRuntimeMXBean().name
+            }
+
+        /**
+         * Creates source without waiting for the config tree to load.
+         * Application could do other work in parallel with the load and use [readiness] to find out when it is loaded.
+         * ```
+         * val source = ZkDynamicPropertySource.createAsync(curator, "/my-application/config", marshaller, timeout)
+         * source.readiness().thenRun { logger.info("Config is loaded") }
+         * ```
+         * @param pendingSubscriptionPolicy how to serve subscriptions created before the tree is loaded
+         * @see ZkDynamicPropertySource
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun createAsync(
+            curatorFramework: CuratorFramework,
+            zookeeperConfigPath: String,
+            marshaller: DynamicPropertyMarshaller,
+            initializationTimeout: Duration,
+            pendingSubscriptionPolicy: ZkPendingSubscriptionPolicy = ZkPendingSubscriptionPolicy.USE_DEFAULT_VALUE,
+            cacheMode: ZkCacheMode = ZkCacheMode.TREE_CACHE,
+            snapshotPath: Path? = null,
+            notificationThreads: Int = DEFAULT_NOTIFICATION_THREADS,
+            consistencyCheckRate: Int = 0,
+            pollingInterval: Duration = DEFAULT_POLLING_INTERVAL,
+            rolloutInstanceId: String = defaultRolloutInstanceId()
+        ) = ZkDynamicPropertySource(
+            curatorFramework,
+            zookeeperConfigPath,
+            marshaller,
+            initializationTimeout,
+            cacheMode,
+            snapshotPath,
+            notificationThreads,
+            consistencyCheckRate,
+            pollingInterval,
+            rolloutInstanceId,
+            pendingSubscriptionPolicy
+        )
+    }
 
     private val propertySourcePublisher = PropertySourcePublisher(
-        propertySourceAccessor = object : PropertySourceAccessor {
+        propertySourceAccessor = object : VersionedPropertySourceAccessor {
             override fun accessPropertyUnderLock(propertyName: String, accessor: (String?) -> Unit) {
-                readTreeAndProcessNotificationLock.withLock {
-                    val path = getAbsolutePathForProperty(propertyName)
-                    val currentData = treeCache.getCurrentData(path)
-                    val currentValue = if (currentData == null)
-                        null
-                    else
-                        zkDataToStringOrNull(currentData.data, currentData.toString())
-                    accessor(currentValue)
+                withCurrentValue(propertyName) { accessor(it) }
+            }
+
+            override fun readVersionedProperty(propertyName: String): VersionedPropertyValue =
+                withCurrentValue(propertyName) { VersionedPropertyValue(it, valueReadSequence.incrementAndGet()) }
+
+            override fun readVersionedProperty(propertyName: String, hasDefaultValue: Boolean): VersionedPropertyValue =
+                withCurrentValue(propertyName, awaitLoaded = !hasDefaultValue) {
+                    VersionedPropertyValue(it, valueReadSequence.incrementAndGet())
+                }
+
+            override fun onPropertyUnsubscribed(propertyName: String) {
+                notificationDispatcher.lockFor(propertyName).withLock {
+                    if (!propertySourcePublisher.hasSubscriptions(propertyName)) {
+                        propertyCache.release(getAbsolutePathForProperty(propertyName))
+                    }
                 }
             }
         },
@@ -69,9 +223,9 @@ class ZkDynamicPropertySource(
         referenceCleaner = ReferenceCleaner.getInstance()
     )
 
-    private val treeCache: TreeCache
+    private val propertyCache: ZkPropertyCache
 
-    private val rootPath: String =
+    internal val rootPath: String =
         if (zookeeperConfigPath.endsWith('/')) {
             zookeeperConfigPath.dropLast(1)
         } else {
@@ -80,106 +234,536 @@ class ZkDynamicPropertySource(
 
     private val rootPathPrefix = "$rootPath/"
 
+    private val chunkedValueReader = ZkChunkedValueReader(curatorFramework, rootPath)
+
+    private val jsonPatchReader = ZkJsonPatchReader(curatorFramework, rootPath)
+
+    /**
+     * Orders values read for subscribers: value read later gets greater version,
+     * so stale value read by notification is never delivered after fresher value read by subscription.
+     */
+    private val valueReadSequence = AtomicLong()
+
+    private val notificationDispatcher = ZkNotificationDispatcher(notificationThreads) { propertyName ->
+        notifyAboutCurrentValue(propertyName)
+    }
+
+    private val snapshot: ZkPropertySnapshot? = snapshotPath?.let {
+        require(cacheMode != ZkCacheMode.LAZY) { "Snapshot is not supported in $cacheMode cache mode" }
+        ZkPropertySnapshot(it, rootPathPrefix, SNAPSHOT_WRITE_DELAY)
+    }
+
+    /**
+     * Values served to subscribers until the cache is initialized, by absolute node paths.
+     * Null when values are served from the cache.
+     * Values are changed under lock of the property in [notificationDispatcher],
+     * map is replaced by null under locks of all properties.
+     */
+    @Volatile
+    private var snapshotValues: MutableMap<String, String>? =
+        snapshot?.loadedValues?.let { ConcurrentHashMap(it) }
+
+    private val initialization = CompletableFuture<ZkDynamicPropertySource>()
+
+    private val clock = Clock.systemUTC()
+
+    /**
+     * Switches properties to new value when rollout of the value reaches this instance
+     */
+    private val rolloutExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "zk-property-rollout").apply { isDaemon = true }
+    }
+
+    /**
+     * Scheduled switches by property names
+     */
+    private val rolloutSwitches = ConcurrentHashMap<String, ScheduledFuture<*>>()
+
+    /**
+     * Nodes repaired by [cacheVerifier], served instead of the cache until the cache catches up with them.
+     * Keys are absolute node paths.
+     */
+    private val repairedNodes = ConcurrentHashMap<String, RepairedNode>()
+
+    /**
+     * @param data actual node data, null if node was removed
+     * @param caughtUpZxid cache events of the node with lower mzxid are older than the repaired data
+     */
+    private class RepairedNode(val data: ChildData?, val caughtUpZxid: Long)
+
+    private val cacheVerifier: ZkCacheVerifier? =
+        if (consistencyCheckRate > 0)
+            ZkCacheVerifier(
+                curatorFramework = curatorFramework,
+                rootPath = rootPath,
+                cachedPaths = { (propertyCache.cachedPaths() + repairedNodes.keys).distinct() },
+                cachedData = ::getNodeData,
+                checkChildren = cacheMode != ZkCacheMode.LAZY,
+                checksPerSecond = consistencyCheckRate,
+                gracePeriod = DIVERGENCE_GRACE_PERIOD,
+                onDivergence = ::repairNode
+            )
+        else
+            null
+
+    /**
+     * How many nodes of the local cache were found to diverge from zookeeper and were repaired.
+     * Always zero if consistency check is disabled.
+     */
+    val detectedDivergences: Long
+        get() = cacheVerifier?.divergenceCount ?: 0
+
+    private val connectionStatusTracker = ZkConnectionStatusTracker(
+        if (curatorFramework.zookeeperClient.isConnected) ConnectionState.CONNECTED else null,
+        Clock.systemUTC()
+    )
+
+    /**
+     * Connection state of the source and since when served config is stale
+     */
+    val connectionStatus: DynamicProperty<ZkConnectionStatus>
+        get() = connectionStatusTracker.status
+
+    private val connectionStateListener = ConnectionStateListener { _, newState ->
+        if (newState.isConnected) {
+            logger.info { "Zk property source $rootPath connection state: $newState" }
+        } else {
+            logger.warn { "Zk property source $rootPath connection state: $newState. Config could be stale" }
+        }
+        connectionStatusTracker.onConnectionStateChanged(newState)
+    }
+
     init {
 
+        curatorFramework.connectionStateListenable.addListener(connectionStateListener)
         if (curatorFramework.state == CuratorFrameworkState.LATENT) {
             curatorFramework.start()
         }
-        treeCache = TreeCache(this.curatorFramework, this.rootPath)
-        val treeCacheInitialized = CountDownLatch(1)
-
-        treeCache.listenable.addListener(TreeCacheListener { _, treeCacheEvent ->
-
-            logger.trace { "Received TreeCache event: $treeCacheEvent" }
-
-            when (treeCacheEvent.type!!) {
-                TreeCacheEvent.Type.NODE_ADDED,
-                TreeCacheEvent.Type.NODE_UPDATED -> {
-                    try {
-                        onZkTreeChanged(
-                            treeCacheEvent, zkDataToStringOrNull(
-                                treeCacheEvent.data.data,
-                                treeCacheEvent.toString()
-                            )
-                        )
-                    } catch (exc: Exception) {
-                        logger.error("Zk property updating error for event $treeCacheEvent", exc)
-                    }
+
+        val cacheListener = object : ZkPropertyCache.Listener {
+            override fun onNodeChanged(path: String, oldData: ChildData?, data: ChildData?) {
+                if (isAlreadyRepaired(path, data)) {
+                    logger.trace { "Zk node $path is already repaired, notification suppressed" }
+                    return
+                }
+                if (isNotModified(oldData, data)) {
+                    logger.trace { "Zk node $path is not modified, notification suppressed" }
+                    return
                 }
-                TreeCacheEvent.Type.NODE_REMOVED -> {
-                    onZkTreeChanged(treeCacheEvent, null)
+                try {
+                    onZkTreeChanged(path, oldData, data)
+                } catch (exc: Exception) {
+                    logger.error("Zk property updating error for node $path", exc)
                 }
-                TreeCacheEvent.Type.INITIALIZED -> {
-                    treeCacheInitialized.countDown()
+            }
+
+            override fun onInitialized() {
+                try {
+                    switchFromSnapshotToCache()
+                } catch (exc: Exception) {
+                    logger.error("Failed to reconcile zk property snapshot with zk tree", exc)
                 }
-                TreeCacheEvent.Type.CONNECTION_LOST,
-                TreeCacheEvent.Type.CONNECTION_SUSPENDED,
-                TreeCacheEvent.Type.CONNECTION_RECONNECTED -> {
-                    //do nothing
+                cacheVerifier?.start()
+                connectionStatusTracker.onInitialized()
+                // source is ready when subscribers got values of the loaded tree,
+                // snapshot is updated by the same notifications, so it contains the whole tree only after them
+                notificationDispatcher.whenDrained().thenRun {
+                    snapshot?.onInitialized()
+                    initialization.complete(this@ZkDynamicPropertySource)
                 }
             }
-        })
+        }
+        // snapshot is reconciled by events of the initial load, lazy cache tracks nodes of this source only
+        propertyCache = if (snapshot == null && cacheMode != ZkCacheMode.LAZY)
+            ZkPropertyCache.createShared(cacheMode, curatorFramework, rootPath, pollingInterval, cacheListener)
+        else
+            ZkPropertyCache.create(cacheMode, curatorFramework, rootPath, pollingInterval, cacheListener)
+
+        propertyCache.start()
+
+        if (snapshotValues != null) {
+            logger.info { "Zk properties of $rootPath are served from snapshot $snapshotPath until zk tree is loaded" }
+        } else if (pendingSubscriptionPolicy == null && !awaitInitialization()) {
+            curatorFramework.connectionStateListenable.removeListener(connectionStateListener)
+            propertyCache.close()
+            cacheVerifier?.close()
+            rolloutExecutor.shutdownNow()
+            notificationDispatcher.close()
+            snapshot?.close()
+            throw ZkDynamicPropertySourceFailedToInitializeOnTime(initializationTimeout)
+        }
+    }
 
-        treeCache.start()
+    /**
+     * Completes when the config tree is loaded from zookeeper into the local cache
+     * and subscribers are notified about values of the loaded tree.
+     * Never completes exceptionally, use timed wait to limit waiting time.
+     * Completes immediately for the source created by constructor without snapshot,
+     * since constructor returns only after the tree is loaded.
+     */
+    fun readiness(): CompletableFuture<ZkDynamicPropertySource> = initialization.thenApply { it }
 
-        if (!treeCacheInitialized.await(initializationTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
-            throw ZkDynamicPropertySourceFailedToInitializeOnTime(initializationTimeout)
+    /**
+     * @return false if tree is not loaded within [initializationTimeout]
+     */
+    private fun awaitInitialization(): Boolean =
+        try {
+            initialization.get(initializationTimeout.toMillis(), TimeUnit.MILLISECONDS)
+            true
+        } catch (exc: TimeoutException) {
+            false
+        } catch (exc: ExecutionException) {
+            false
+        }
+
+    /**
+     * Blocks subscription until the tree is loaded. Value from the snapshot is treated as loaded.
+     * Called outside of property lock so that cache could continue to load the tree.
+     */
+    private fun awaitLoadedValue(propertyName: String) {
+        if (initialization.isDone || snapshotValues != null) {
+            return
+        }
+        if (!awaitInitialization()) {
+            logger.warn {
+                "Zk tree $rootPath is not loaded within $initializationTimeout. " +
+                        "Subscription for property $propertyName will be served by value that is currently in cache"
+            }
+        }
+    }
+
+    /**
+     * Stops serving snapshot values and notifies about snapshot properties that differ from the loaded tree.
+     * Properties that changed during the load are already reconciled by [onZkTreeChanged],
+     * so in most cases only properties removed while the application was down are left.
+     */
+    private fun switchFromSnapshotToCache() {
+        val servedValues = notificationDispatcher.withAllLocks {
+            val servedValues = snapshotValues
+            snapshotValues = null
+            servedValues
+        } ?: return
+        // values are compared outside of the locks, since chunked and patched values are read from zookeeper
+        servedValues.forEach { (path, servedValue) ->
+            if (getCachedValue(path) != servedValue) {
+                notificationDispatcher.dispatch(getPropertyNameFromAbsolutePath(path))
+            }
         }
     }
 
     /**
-     * Works through curator directly to load latest data
+     * [ZkCacheMode.TREE_CACHE] and [ZkCacheMode.CURATOR_CACHE] re-read the whole tree after reconnect
+     * and report nodes that did not change or were rewritten with the same content.
+     * Such events do not change property values, so only notifications are suppressed:
+     * the re-read itself is not avoided, stat based resync is done only by [ZkCacheMode.LAZY] and [ZkCacheMode.POLLING].
      */
-    fun readAllProperties(): Map<String, Any> {
-        val allProperties = ConcurrentHashMap<String, Any>()
+    private fun isNotModified(oldData: ChildData?, data: ChildData?): Boolean =
+        oldData != null && data != null &&
+                (oldData.stat?.mzxid == data.stat?.mzxid || Arrays.equals(oldData.data, data.data))
 
-        val exist = curatorFramework.checkExists().forPath(rootPath)
-        if (exist != null) {
-            val children = curatorFramework.children.forPath(rootPath)
-            if (children.isNotEmpty()) {
-                val latch = CountDownLatch(children.size)
-                for (child in children) {
-                    curatorFramework.data.watched().inBackground { _, event ->
-                        allProperties[child] = String(event.data, StandardCharsets.UTF_8)
-                        latch.countDown()
-                    }.forPath(getAbsolutePathForProperty(child))
+    /**
+     * Runs [block] with value that is served to subscriber of the property under the shard lock of the property.
+     *
+     * @param awaitLoaded wait for the tree to be loaded regardless of [pendingSubscriptionPolicy],
+     * e.g. because subscription has no default value to use meanwhile
+     */
+    private fun <T> withCurrentValue(propertyName: String, awaitLoaded: Boolean = false, block: (String?) -> T): T {
+        if (awaitLoaded || pendingSubscriptionPolicy == ZkPendingSubscriptionPolicy.AWAIT_LOADED_VALUE) {
+            awaitLoadedValue(propertyName)
+        }
+        val path = getAbsolutePathForProperty(propertyName)
+        return withDecodedValue(propertyName, track = true) { cachedValue -> block(servedValue(path, cachedValue)) }
+    }
+
+    private fun notifyAboutCurrentValue(propertyName: String) {
+        val path = getAbsolutePathForProperty(propertyName)
+        val value = withDecodedValue(propertyName, track = false) { cachedValue ->
+            if (snapshot != null) {
+                snapshot.onNodeChanged(path, cachedValue)
+                if (!updateServedValue(propertyName, path, cachedValue)) {
+                    return@withDecodedValue null
                 }
-                if (!latch.await(120, TimeUnit.SECONDS)) {
-                    throw TimeoutException("Failed to extract zk properties data")
+            }
+            VersionedPropertyValue(servedValue(path, cachedValue), valueReadSequence.incrementAndGet())
+        } ?: return
+        // listeners are invoked outside of the shard lock, so listener could subscribe to properties of other shards
+        propertySourcePublisher.notifyAboutVersionedPropertyChange(propertyName, value)
+    }
+
+    /**
+     * Runs [block] under the shard lock of the property with value decoded from current data of the node.
+     * Value is decoded outside of the lock, since chunks and patches of the value are read from zookeeper.
+     * Value is decoded again if the node changed before the lock is taken.
+     *
+     * @param track load the node beforehand if cache loads nodes on demand
+     * and make sure under the lock that it is still tracked
+     */
+    private fun <T> withDecodedValue(propertyName: String, track: Boolean, block: (cachedValue: String?) -> T): T {
+        val path = getAbsolutePathForProperty(propertyName)
+        while (true) {
+            if (track) {
+                propertyCache.track(path)
+            }
+            val data = getNodeData(path)
+            val value = data?.let { decodeNodeData(path, it.data, it.stat.mtime) }
+            notificationDispatcher.lockFor(propertyName).withLock {
+                // concurrent unsubscription could release the node and concurrent update could change it
+                if ((!track || propertyCache.isCached(path)) && data?.stat?.mzxid == getNodeData(path)?.stat?.mzxid) {
+                    return block(value)
                 }
             }
         }
+    }
+
+    /**
+     * @return value that is served to subscribers: from the snapshot until the cache is initialized
+     */
+    private fun servedValue(path: String, cachedValue: String?): String? {
+        val servedValues = snapshotValues
+        return if (servedValues != null)
+            servedValues[path]
+        else
+            cachedValue
+    }
+
+    private fun getCachedValue(path: String): String? {
+        val currentData = getNodeData(path) ?: return null
+        return decodeNodeData(path, currentData.data, currentData.stat.mtime)
+    }
+
+    /**
+     * @return repaired node data if the cache did not catch up with it yet, otherwise node data from the cache
+     */
+    private fun getNodeData(path: String): ChildData? {
+        val repairedNode = repairedNodes[path]
+        return if (repairedNode != null)
+            repairedNode.data
+        else
+            propertyCache.getCurrentData(path)
+    }
+
+    /**
+     * Serves actual node data instead of diverged cache and notifies subscribers of the node
+     */
+    private fun repairNode(path: String, data: ChildData?) {
+        val staleData = propertyCache.getCurrentData(path)
+        val caughtUpZxid = data?.stat?.mzxid ?: staleData?.stat?.mzxid?.plus(1) ?: 0
+        repairedNodes[path] = RepairedNode(data, caughtUpZxid)
+        onZkTreeChanged(path, staleData, data)
+    }
+
+    /**
+     * Stops serving repaired node once the cache catches up with it
+     *
+     * @return true if cache event is older than repaired data or brings the same data
+     */
+    private fun isAlreadyRepaired(path: String, data: ChildData?): Boolean {
+        val repairedNode = repairedNodes[path] ?: return false
+        if (data != null && data.stat.mzxid < repairedNode.caughtUpZxid) {
+            return true
+        }
+        repairedNodes.remove(path, repairedNode)
+        return if (data == null || repairedNode.data == null)
+            data == repairedNode.data
+        else
+            Arrays.equals(data.data, repairedNode.data.data)
+    }
+
+    /**
+     * Works through curator directly to load latest data.
+     * Reads whole config tree recursively, including nested properties, and does not leave watches on nodes.
+     *
+     * @param parallelism how many read requests could be sent to zookeeper simultaneously
+     * @param timeout how long to wait until the whole tree is read
+     * @return raw property values by property names
+     */
+    @JvmOverloads
+    @Throws(TimeoutException::class)
+    fun readAllProperties(
+        parallelism: Int = DEFAULT_READ_PARALLELISM,
+        timeout: Duration = DEFAULT_READ_TIMEOUT
+    ): Map<String, String> {
+        val allProperties = HashMap<String, String>()
+        readAllProperties(parallelism, timeout, Consumer { property ->
+            allProperties[property.name] = property.value
+        })
         return allProperties
     }
 
+    /**
+     * Works through curator directly to load latest data.
+     * Reads whole config tree recursively, including nested properties, and does not leave watches on nodes.
+     * Streams properties to the [consumer] within the calling thread as soon as they are read,
+     * so memory consumption does not depend on the size of the tree.
+     *
+     * @param parallelism how many read requests could be sent to zookeeper simultaneously
+     * @param timeout how long to wait until the whole tree is read
+     */
+    @Throws(TimeoutException::class)
+    fun readAllProperties(parallelism: Int, timeout: Duration, consumer: Consumer<ZkProperty>) {
+        ZkTreeReader(curatorFramework, parallelism, timeout).read(rootPath, object : ZkTreeReader.Visitor {
+            override fun onNode(path: String, data: ByteArray?, stat: Stat): Boolean {
+                val propertyName = getPropertyNameFromAbsolutePath(path)
+                if (ZkChunkManifest.isReservedProperty(propertyName)) {
+                    return false
+                }
+                val value = if (data == null) "" else decodeNodeData(path, data, null) ?: ""
+                consumer.accept(
+                    ZkProperty(
+                        name = propertyName,
+                        value = value,
+                        version = stat.version,
+                        modifiedZxid = stat.mzxid
+                    )
+                )
+                return true
+            }
+        })
+    }
 
-    private fun zkDataToStringOrNull(data: ByteArray, logDetails: String): String? =
+
+    /**
+     * Decodes plain, compressed, chunked, patched value or value that is rolled out
+     *
+     * @param modifiedTime node modification time to find out which value of rollout is served,
+     * null to get new value of rollout regardless of the policy
+     */
+    private fun decodeNodeData(absolutePath: String, data: ByteArray, modifiedTime: Long?): String? =
         try {
-            String(data, StandardCharsets.UTF_8)
+            val propertyName = getPropertyNameFromAbsolutePath(absolutePath)
+            when {
+                ZkPropertyValueCodec.isRolloutEnvelope(data) -> {
+                    val envelope = ZkRolloutEnvelope.parse(data)
+                    val value = if (modifiedTime == null)
+                        envelope.value
+                    else
+                        envelope.servedValue(modifiedTime, rolloutBucketOf(propertyName), clock.millis()).first
+                    value?.let { ZkPropertyValueCodec.decode(it) }
+                }
+                ZkPropertyValueCodec.isJsonPatchLog(data) -> jsonPatchReader.read(propertyName, data)
+                else -> chunkedValueReader.read(propertyName, data)
+            }
         } catch (exc: Exception) {
-            logger.error("Failed to read string value from zk node. $logDetails", exc)
+            logger.error("Failed to read string value from zk node $absolutePath", exc)
             null
         }
 
+    private fun isReadFromOtherNodes(data: ByteArray) =
+        ZkPropertyValueCodec.isChunkManifest(data) || ZkPropertyValueCodec.isJsonPatchLog(data)
 
-    private fun onZkTreeChanged(treeCacheEvent: TreeCacheEvent, newValue: String?) {
-        val absolutePath = treeCacheEvent.data.path
+    private fun rolloutBucketOf(propertyName: String) = ZkRolloutPolicy.bucketOf(rolloutInstanceId, propertyName)
+
+    /**
+     * Schedules switch to new value if the node is rolled out and rollout did not reach this instance yet
+     */
+    private fun scheduleRolloutSwitch(propertyName: String, absolutePath: String, data: ChildData?) {
+        // switch that is already due is not cancelled, since new data could hide it
+        rolloutSwitches.remove(propertyName)
+            ?.takeIf { it.getDelay(TimeUnit.MILLISECONDS) > 0 }
+            ?.cancel(false)
+        if (data == null || !ZkPropertyValueCodec.isRolloutEnvelope(data.data)) {
+            return
+        }
+        val now = clock.millis()
+        val switchTime = ZkRolloutEnvelope.parse(data.data)
+            .servedValue(data.stat.mtime, rolloutBucketOf(propertyName), now)
+            .second
+            ?: return
+        logger.info { "Zk property $propertyName will switch to new value in ${switchTime - now} ms" }
+        rolloutSwitches[propertyName] = rolloutExecutor.schedule({
+            try {
+                onZkTreeChanged(absolutePath, null, getNodeData(absolutePath))
+            } catch (exc: Exception) {
+                logger.error("Failed to switch zk property $propertyName to new value", exc)
+            }
+        }, switchTime - now, TimeUnit.MILLISECONDS)
+    }
+
+
+    /**
+     * @return true if node is rolled out and value served by this instance is the same for both node versions
+     */
+    private fun isServedValueNotChanged(absolutePath: String, oldData: ChildData?, data: ChildData?): Boolean {
+        if (oldData == null || data == null ||
+            !ZkPropertyValueCodec.isRolloutEnvelope(oldData.data) && !ZkPropertyValueCodec.isRolloutEnvelope(data.data)
+        ) {
+            return false
+        }
+        // runs on the cache event thread, values that are read from other nodes are not compared
+        if (isReadFromOtherNodes(oldData.data) || isReadFromOtherNodes(data.data)) {
+            return false
+        }
+        return decodeNodeData(absolutePath, oldData.data, oldData.stat.mtime) ==
+                decodeNodeData(absolutePath, data.data, data.stat.mtime)
+    }
+
+    /**
+     * @param oldData previous node data served by this source, null if unknown
+     */
+    private fun onZkTreeChanged(absolutePath: String, oldData: ChildData?, data: ChildData?) {
         if (!absolutePath.startsWith(rootPathPrefix)) {
             return
         }
 
         val propertyName = getPropertyNameFromAbsolutePath(absolutePath)
+        if (ZkChunkManifest.isReservedProperty(propertyName)) {
+            return
+        }
+        if (data == null) {
+            chunkedValueReader.forget(propertyName)
+            jsonPatchReader.forget(propertyName)
+        }
+        scheduleRolloutSwitch(propertyName, absolutePath, data)
+        if (isServedValueNotChanged(absolutePath, oldData, data)) {
+            logger.debug { "Zk property $propertyName is rolled out, but rollout did not reach this instance yet" }
+            return
+        }
 
-        logger.info {
-            "Zk property change: type: ${treeCacheEvent.type}, node: $absolutePath. New value is '$newValue'"
+        logger.debug {
+            "Zk property change: node: $absolutePath. New data length: ${data?.data?.size}"
         }
-        readTreeAndProcessNotificationLock.withLock {
-            propertySourcePublisher.notifyAboutPropertyChange(propertyName, newValue)
+        // value is decoded and snapshot is updated by notification out of the cache event thread
+        notificationDispatcher.dispatch(propertyName)
+    }
+
+    /**
+     * Updates value served from the snapshot until the cache is initialized
+     *
+     * @return false if snapshot already contains actual value
+     */
+    private fun updateServedValue(propertyName: String, absolutePath: String, newValue: String?): Boolean {
+        if (snapshotValues == null) {
+            return true
+        }
+        notificationDispatcher.lockFor(propertyName).withLock {
+            val servedValues = snapshotValues ?: return true
+            val servedValue = if (newValue == null)
+                servedValues.remove(absolutePath)
+            else
+                servedValues.put(absolutePath, newValue)
+            return servedValue != newValue
         }
     }
 
 
-    private fun getAbsolutePathForProperty(propertyName: String): String {
+    /**
+     * @param expectedData null if node is expected to be removed
+     * @return true if local cache contains expected node data,
+     * false while the node is not cached, e.g. is not loaded yet or is not subscribed in [ZkCacheMode.LAZY] mode
+     */
+    internal fun isPropagated(propertyName: String, expectedData: ByteArray?): Boolean {
+        val path = getAbsolutePathForProperty(propertyName)
+        if (!propertyCache.isCached(path)) {
+            return false
+        }
+        val currentData = getNodeData(path)
+        return if (expectedData == null)
+            currentData == null
+        else
+            currentData != null && Arrays.equals(currentData.data, expectedData)
+    }
+
+    internal fun getAbsolutePathForProperty(propertyName: String): String {
         Objects.requireNonNull(propertyName)
         return "$rootPath/$propertyName"
     }
@@ -197,8 +781,13 @@ class ZkDynamicPropertySource(
     }
 
     override fun close() {
+        curatorFramework.connectionStateListenable.removeListener(connectionStateListener)
         propertySourcePublisher.close()
-        treeCache.close()
+        cacheVerifier?.close()
+        propertyCache.close()
+        rolloutExecutor.shutdownNow()
+        notificationDispatcher.close()
+        snapshot?.close()
     }
 
 
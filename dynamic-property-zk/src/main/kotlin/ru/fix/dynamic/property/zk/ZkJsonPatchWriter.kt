@@ -0,0 +1,199 @@
+package ru.fix.dynamic.property.zk
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.apache.curator.framework.CuratorFramework
+import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+
+/**
+ * Writes large JSON properties of [ZkDynamicPropertySource] as base document and JSON Patches to it,
+ * so that small edit of large document transfers only the edit to clients.
+ * ```
+ * val writer = ZkJsonPatchWriter(curator, "/my-application/config")
+ * writer.write("routing.table", routingTableJson)
+ * writer.patch("routing.table", """[{"op": "replace", "path": "/routes/3/weight", "value": 5}]""")
+ * ```
+ * Each patch is written to its own node, property node keeps only ids of patches applied to the base,
+ * so clients read only new patch nodes instead of the whole list of patches, see [ZkJsonPatchLog].
+ * Writer reads the base and all its patches to validate the new patch against the current document.
+ * Patches are kept until their total size exceeds [rebaseRatio] of the base document size.
+ * Then patched document is written as a new base. Base document is stored in a single node,
+ * so compressed document should fit into zookeeper node size limit.
+ *
+ * Clients apply new patches to the document tree they already have instead of parsing the whole base.
+ * Patched document is still rendered to text and unmarshalled by subscriptions as a whole,
+ * since [ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller] works with strings,
+ * so client side cost of each patch remains proportional to the document size.
+ *
+ * Patch is validated against current document before it is written, see [JsonPatch].
+ * Writes are guarded by node version: if property is concurrently changed by another writer,
+ * write fails with [KeeperException.BadVersionException] or [KeeperException.NodeExistsException].
+ * Base and patch nodes are sequential, so concurrent writers never overwrite or remove each other's nodes.
+ *
+ * @param rootPath config root of [ZkDynamicPropertySource]
+ * @param compressionThreshold see [ZkPropertyValueCodec.encode]
+ */
+class ZkJsonPatchWriter @JvmOverloads constructor(
+    private val curatorFramework: CuratorFramework,
+    rootPath: String,
+    private val rebaseRatio: Double = DEFAULT_REBASE_RATIO,
+    private val compressionThreshold: Int = ZkPropertyValueCodec.DEFAULT_COMPRESSION_THRESHOLD
+) {
+    companion object : Logging {
+        const val DEFAULT_REBASE_RATIO = 0.25
+        private val objectMapper = ObjectMapper()
+    }
+
+    init {
+        require(rebaseRatio > 0) { "Rebase ratio should be positive: $rebaseRatio" }
+    }
+
+    private val rootPath = rootPath.removeSuffix("/")
+
+    /**
+     * Writes the whole document as a new base
+     */
+    fun write(propertyName: String, document: String) {
+        require(!ZkChunkManifest.isReservedProperty(propertyName)) {
+            "Property name $propertyName contains reserved node"
+        }
+        // validate and normalize the document
+        val text = objectMapper.writeValueAsString(objectMapper.readTree(document))
+        val stat = Stat()
+        val exists = try {
+            curatorFramework.data.storingStatIn(stat).forPath(propertyPath(propertyName))
+            true
+        } catch (exc: KeeperException.NoNodeException) {
+            false
+        }
+        writeBase(propertyName, text, exists, stat)
+    }
+
+    /**
+     * Applies JSON Patch to the current document of the property
+     *
+     * @param patch JSON array of patch operations
+     * @throws IllegalStateException if property is not written by [write]
+     * @throws IllegalArgumentException if patch could not be applied to the current document
+     * @throws KeeperException.BadVersionException or [KeeperException.NoNodeException]
+     * if property was concurrently updated by another writer
+     */
+    fun patch(propertyName: String, patch: String) {
+        val stat = Stat()
+        val currentData = try {
+            curatorFramework.data.storingStatIn(stat).forPath(propertyPath(propertyName))
+        } catch (exc: KeeperException.NoNodeException) {
+            throw IllegalStateException("Property $propertyName does not exist", exc)
+        }
+        check(ZkPropertyValueCodec.isJsonPatchLog(currentData)) {
+            "Property $propertyName is not written by ZkJsonPatchWriter"
+        }
+        val log = ZkJsonPatchLog.parse(currentData)
+        val baseData = curatorFramework.data.forPath(
+            ZkJsonPatchLog.basePath(rootPath, propertyName, log.baseVersion)
+        )
+
+        var document = objectMapper.readTree(ZkPropertyValueCodec.decode(baseData))
+        var patchesSize = 0L
+        for (patchId in log.patchIds) {
+            val patchData = curatorFramework.data.forPath(
+                ZkJsonPatchLog.patchPath(rootPath, propertyName, log.baseVersion, patchId)
+            )
+            patchesSize += patchData.size
+            document = JsonPatch.apply(document, objectMapper.readTree(ZkPropertyValueCodec.decode(patchData)))
+        }
+        val newPatch = objectMapper.readTree(patch)
+        document = JsonPatch.apply(document, newPatch)
+
+        val patchData = ZkPropertyValueCodec.encode(objectMapper.writeValueAsString(newPatch), compressionThreshold)
+        if (patchesSize + patchData.size > baseData.size * rebaseRatio) {
+            logger.info { "Patches of property $propertyName exceed $rebaseRatio of base document, writing new base" }
+            writeBase(propertyName, objectMapper.writeValueAsString(document), true, stat)
+            return
+        }
+        val patchPath = curatorFramework.create()
+            .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+            .forPath(ZkJsonPatchLog.patchPathPrefix(rootPath, propertyName, log.baseVersion), patchData)
+        try {
+            curatorFramework.setData()
+                .withVersion(stat.version)
+                .forPath(propertyPath(propertyName), log.withPatch(ZkJsonPatchLog.parsePatchId(patchPath)).encode())
+        } catch (exc: KeeperException.BadVersionException) {
+            deleteQuietly(patchPath)
+            throw exc
+        }
+    }
+
+    private fun propertyPath(propertyName: String) = "$rootPath/$propertyName"
+
+    private fun writeBase(propertyName: String, document: String, exists: Boolean, stat: Stat) {
+        // sequential node gives base version that is unique among concurrent writers
+        val basePath = curatorFramework.create()
+            .creatingParentsIfNeeded()
+            .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+            .forPath(
+                ZkJsonPatchLog.basePathPrefix(rootPath, propertyName),
+                ZkPropertyValueCodec.encode(document, compressionThreshold)
+            )
+        val log = ZkJsonPatchLog(ZkJsonPatchLog.parseBaseVersion(basePath), emptyList()).encode()
+        try {
+            if (exists) {
+                curatorFramework.setData().withVersion(stat.version).forPath(propertyPath(propertyName), log)
+            } else {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(propertyPath(propertyName), log)
+            }
+        } catch (exc: KeeperException.BadVersionException) {
+            deleteQuietly(basePath)
+            throw exc
+        } catch (exc: KeeperException.NodeExistsException) {
+            deleteQuietly(basePath)
+            throw exc
+        }
+        removeStaleBases(propertyName)
+    }
+
+    /**
+     * Removes bases that are not referenced by the property node together with their patches.
+     * Base created after the current value of the property node was set could belong to concurrent writer
+     * that is going to switch property to it, so such base is kept.
+     * Readers that are still reading removed base re-read the property node.
+     */
+    private fun removeStaleBases(propertyName: String) {
+        val basesPath = ZkJsonPatchLog.basesPath(rootPath, propertyName)
+        val propertyStat = Stat()
+        val currentData = try {
+            curatorFramework.data.storingStatIn(propertyStat).forPath(propertyPath(propertyName))
+        } catch (exc: KeeperException.NoNodeException) {
+            // property was removed concurrently, bases are removed by the next write
+            return
+        }
+        val currentBase = if (ZkPropertyValueCodec.isJsonPatchLog(currentData))
+            ZkJsonPatchLog.baseNode(ZkJsonPatchLog.parse(currentData).baseVersion)
+        else
+            null
+
+        val bases = try {
+            curatorFramework.children.forPath(basesPath)
+        } catch (exc: KeeperException.NoNodeException) {
+            return
+        }
+        bases.filter { it != currentBase }.forEach { base ->
+            val baseStat = curatorFramework.checkExists().forPath("$basesPath/$base") ?: return@forEach
+            if (baseStat.czxid < propertyStat.mzxid) {
+                deleteQuietly("$basesPath/$base")
+            }
+        }
+    }
+
+    private fun deleteQuietly(path: String) {
+        try {
+            curatorFramework.delete().deletingChildrenIfNeeded().forPath(path)
+        } catch (exc: KeeperException.NoNodeException) {
+            // already removed
+        } catch (exc: Exception) {
+            logger.warn("Failed to remove stale JSON document node $path", exc)
+        }
+    }
+}
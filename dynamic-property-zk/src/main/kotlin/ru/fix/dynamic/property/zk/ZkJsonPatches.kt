@@ -0,0 +1,212 @@
+package ru.fix.dynamic.property.zk
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.utils.ZKPaths
+import org.apache.zookeeper.KeeperException
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.URLEncoder
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Layout of JSON properties that are updated by JSON Patches.
+ * Base document is kept in immutable sequential node `<root>/.json/<url encoded property name>/b<base version>`,
+ * each patch is kept in its own immutable sequential node `<base node>/p<patch id>`.
+ * Property node keeps base version and ids of patches applied to the base since it was written:
+ * ```
+ * 0  header        0x00 'D' 'P' 'J'
+ * 4  base version  long
+ * 12 patch count   int
+ * 16 patch ids     long[patch count]  in order of application, list of the same base only grows
+ * ```
+ * Patch node contains JSON Patch encoded by [ZkPropertyValueCodec].
+ * Readers that already have document of the same base version read and apply only patches they did not see yet.
+ * Patch nodes that are not listed by the property node belong to writers that failed, they are never read.
+ */
+internal class ZkJsonPatchLog(
+    val baseVersion: Long,
+    val patchIds: List<Long>
+) {
+    companion object {
+        const val JSON_NODE = ".json"
+        private const val BASE_NODE_PREFIX = "b"
+        private const val PATCH_NODE_PREFIX = "p"
+
+        fun parse(data: ByteArray): ZkJsonPatchLog {
+            require(ZkPropertyValueCodec.isJsonPatchLog(data)) { "Node data is not a JSON Patch log" }
+            val body = ByteArrayInputStream(
+                data,
+                ZkPropertyValueCodec.HEADER_SIZE,
+                data.size - ZkPropertyValueCodec.HEADER_SIZE
+            )
+            DataInputStream(body).use { input ->
+                val baseVersion = input.readLong()
+                val patchCount = input.readInt()
+                return ZkJsonPatchLog(baseVersion, List(patchCount) { input.readLong() })
+            }
+        }
+
+        fun basesPath(rootPath: String, propertyName: String): String =
+            "$rootPath/$JSON_NODE/${URLEncoder.encode(propertyName, StandardCharsets.UTF_8.name())}"
+
+        /**
+         * Path to create sequential base node with
+         */
+        fun basePathPrefix(rootPath: String, propertyName: String): String =
+            "${basesPath(rootPath, propertyName)}/$BASE_NODE_PREFIX"
+
+        fun baseNode(baseVersion: Long) = BASE_NODE_PREFIX + sequentialSuffix(baseVersion)
+
+        fun basePath(rootPath: String, propertyName: String, baseVersion: Long): String =
+            "${basesPath(rootPath, propertyName)}/${baseNode(baseVersion)}"
+
+        /**
+         * Path to create sequential patch node with
+         */
+        fun patchPathPrefix(rootPath: String, propertyName: String, baseVersion: Long): String =
+            "${basePath(rootPath, propertyName, baseVersion)}/$PATCH_NODE_PREFIX"
+
+        fun patchPath(rootPath: String, propertyName: String, baseVersion: Long, patchId: Long): String =
+            "${basePath(rootPath, propertyName, baseVersion)}/$PATCH_NODE_PREFIX${sequentialSuffix(patchId)}"
+
+        fun parseBaseVersion(basePath: String): Long =
+            ZKPaths.getNodeFromPath(basePath).removePrefix(BASE_NODE_PREFIX).toLong()
+
+        fun parsePatchId(patchPath: String): Long =
+            ZKPaths.getNodeFromPath(patchPath).removePrefix(PATCH_NODE_PREFIX).toLong()
+
+        /**
+         * Same format as zookeeper uses for sequential nodes
+         */
+        private fun sequentialSuffix(id: Long) = String.format("%010d", id)
+    }
+
+    fun withPatch(patchId: Long) = ZkJsonPatchLog(baseVersion, patchIds + patchId)
+
+    fun encode(): ByteArray {
+        val output = ByteArrayOutputStream()
+        output.write(ZkPropertyValueCodec.HEADER_PREFIX)
+        output.write(ZkPropertyValueCodec.JSON_PATCH_LOG_ID.toInt())
+        DataOutputStream(output).use { data ->
+            data.writeLong(baseVersion)
+            data.writeInt(patchIds.size)
+            patchIds.forEach { data.writeLong(it) }
+        }
+        return output.toByteArray()
+    }
+}
+
+/**
+ * Reads JSON properties written by [ZkJsonPatchWriter].
+ * Keeps the last document tree of each property, so the next version of the document is produced
+ * by reading and applying only new patch nodes to the kept tree instead of parsing the whole document.
+ * Patched document is still rendered to text as a whole, since subscriptions unmarshal property values from text,
+ * so client side cost of each patch is proportional to the size of the document.
+ */
+internal class ZkJsonPatchReader(
+    private val curatorFramework: CuratorFramework,
+    private val rootPath: String
+) {
+    companion object {
+        private const val MAX_READ_ATTEMPTS = 10
+        private val objectMapper = ObjectMapper()
+    }
+
+    private class PatchedDocument(
+        val baseVersion: Long,
+        val patchCount: Int,
+        val document: JsonNode,
+        val text: String
+    )
+
+    /**
+     * Keeps the last document of the property. Properties are read under locks of their own holders,
+     * so slow read of patch nodes of one property does not stall reads of other properties.
+     */
+    private class DocumentHolder {
+        /**
+         * Guarded by this holder
+         */
+        var document: PatchedDocument? = null
+    }
+
+    private val documents = ConcurrentHashMap<String, DocumentHolder>()
+
+    /**
+     * @param data content of the property node: JSON Patch log or value written without patches
+     */
+    fun read(propertyName: String, data: ByteArray): String {
+        if (!ZkPropertyValueCodec.isJsonPatchLog(data)) {
+            documents.remove(propertyName)
+            return ZkPropertyValueCodec.decode(data)
+        }
+        val holder = documents.computeIfAbsent(propertyName) { DocumentHolder() }
+        synchronized(holder) {
+            return read(propertyName, data, holder)
+        }
+    }
+
+    private fun read(propertyName: String, data: ByteArray, holder: DocumentHolder): String {
+        var current = data
+        for (attempt in 1..MAX_READ_ATTEMPTS) {
+            if (!ZkPropertyValueCodec.isJsonPatchLog(current)) {
+                holder.document = null
+                return ZkPropertyValueCodec.decode(current)
+            }
+            val log = ZkJsonPatchLog.parse(current)
+            val cached = holder.document
+                ?.takeIf { it.baseVersion == log.baseVersion && it.patchCount <= log.patchIds.size }
+            if (cached != null && cached.patchCount == log.patchIds.size) {
+                return cached.text
+            }
+            // kept tree is patched in place, so it is not kept anymore if patch fails
+            holder.document = null
+            try {
+                val document = if (cached != null)
+                    applyPatches(propertyName, cached.document, log, cached.patchCount)
+                else
+                    applyPatches(propertyName, readBase(propertyName, log.baseVersion), log, 0)
+                val text = objectMapper.writeValueAsString(document)
+                holder.document = PatchedDocument(log.baseVersion, log.patchIds.size, document, text)
+                return text
+            } catch (exc: KeeperException.NoNodeException) {
+                // writer switched property to a new base and removed this one
+                current = curatorFramework.data.forPath("$rootPath/$propertyName")
+            }
+        }
+        throw IllegalStateException(
+            "Failed to read base document of property $propertyName within $MAX_READ_ATTEMPTS attempts"
+        )
+    }
+
+    private fun readBase(propertyName: String, baseVersion: Long): JsonNode {
+        val data = curatorFramework.data.forPath(ZkJsonPatchLog.basePath(rootPath, propertyName, baseVersion))
+        return objectMapper.readTree(ZkPropertyValueCodec.decode(data))
+    }
+
+    /**
+     * @param fromIndex number of patches of the log already applied to the [document]
+     */
+    private fun applyPatches(propertyName: String, document: JsonNode, log: ZkJsonPatchLog, fromIndex: Int): JsonNode {
+        var result = document
+        for (index in fromIndex until log.patchIds.size) {
+            val patchData = curatorFramework.data.forPath(
+                ZkJsonPatchLog.patchPath(rootPath, propertyName, log.baseVersion, log.patchIds[index])
+            )
+            result = JsonPatch.apply(result, objectMapper.readTree(ZkPropertyValueCodec.decode(patchData)))
+        }
+        return result
+    }
+
+    /**
+     * Property was removed
+     */
+    fun forget(propertyName: String) {
+        documents.remove(propertyName)
+    }
+}
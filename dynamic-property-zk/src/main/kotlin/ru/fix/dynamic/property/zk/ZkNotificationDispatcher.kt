@@ -0,0 +1,115 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.logging.log4j.kotlin.Logging
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Delivers property change notifications of [ZkDynamicPropertySource] out of Curator event thread.
+ * Properties are sharded by name over [shardCount] single thread executors.
+ * Each shard has its own lock that guards reading of values of the shard properties.
+ * Lock is held only while value is read and never while listeners run,
+ * so listener that subscribes to property of another shard could not deadlock with notification of that shard.
+ * Slow listener of one property does not delay properties of other shards.
+ *
+ * Notifications of the same property are serial and coalesced:
+ * at most one notification per property is queued and it delivers the value
+ * that is current at the moment of delivery.
+ * Subscriptions are not serialized with notifications, values are ordered by their versions instead,
+ * see [ru.fix.dynamic.property.std.source.VersionedPropertySourceAccessor].
+ *
+ * @param notify delivers current value of the property, invoked outside of the shard lock
+ */
+internal class ZkNotificationDispatcher(
+    shardCount: Int,
+    private val notify: (String) -> Unit
+) : AutoCloseable {
+
+    companion object : Logging
+
+    init {
+        require(shardCount > 0) { "Shard count should be positive: $shardCount" }
+    }
+
+    private class Shard(index: Int) {
+        val lock = ReentrantLock()
+
+        val executor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "zk-property-notification-$index").apply { isDaemon = true }
+        }
+
+        /**
+         * Properties with queued notification
+         */
+        val queued: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    }
+
+    private val shards = List(shardCount) { Shard(it) }
+
+    private fun shardOf(propertyName: String) = shards[Math.floorMod(propertyName.hashCode(), shards.size)]
+
+    /**
+     * Lock that guards reading of the property value
+     */
+    fun lockFor(propertyName: String): ReentrantLock = shardOf(propertyName).lock
+
+    /**
+     * Runs [block] holding locks of all shards.
+     * Does not deadlock with other users of the locks, since none of them holds more than one shard lock.
+     */
+    fun <T> withAllLocks(block: () -> T): T {
+        shards.forEach { it.lock.lock() }
+        try {
+            return block()
+        } finally {
+            shards.asReversed().forEach { it.lock.unlock() }
+        }
+    }
+
+    /**
+     * Schedules notification about the property if it is not scheduled yet
+     */
+    fun dispatch(propertyName: String) {
+        val shard = shardOf(propertyName)
+        if (!shard.queued.add(propertyName)) {
+            return
+        }
+        try {
+            shard.executor.execute {
+                // changes that arrive during the notification schedule a new one
+                shard.queued.remove(propertyName)
+                try {
+                    notify(propertyName)
+                } catch (exc: Exception) {
+                    logger.error("Failed to notify about zk property $propertyName change", exc)
+                }
+            }
+        } catch (exc: RejectedExecutionException) {
+            shard.queued.remove(propertyName)
+            logger.debug { "Notification about zk property $propertyName is skipped, dispatcher is closed" }
+        }
+    }
+
+    /**
+     * Completes when notifications that are queued at the moment of the call are delivered.
+     * Completes immediately if dispatcher is closed.
+     */
+    fun whenDrained(): CompletableFuture<Void> {
+        val shardsDrained = shards.map { shard ->
+            try {
+                CompletableFuture.runAsync(Runnable { }, shard.executor)
+            } catch (exc: RejectedExecutionException) {
+                CompletableFuture.completedFuture<Void>(null)
+            }
+        }
+        return CompletableFuture.allOf(*shardsDrained.toTypedArray())
+    }
+
+    override fun close() {
+        shards.forEach { it.executor.shutdownNow() }
+    }
+}
@@ -0,0 +1,22 @@
+package ru.fix.dynamic.property.zk
+
+/**
+ * How [ZkDynamicPropertySource] created by [ZkDynamicPropertySource.createAsync] serves subscriptions
+ * that were created before the config tree is loaded from zookeeper.
+ */
+enum class ZkPendingSubscriptionPolicy {
+    /**
+     * Subscription does not block.
+     * If property is not loaded yet, subscription gets default value
+     * and then listener is notified when actual value is loaded.
+     * Subscription without default value has nothing to serve meanwhile,
+     * so it waits for the loaded value as with [AWAIT_LOADED_VALUE].
+     */
+    USE_DEFAULT_VALUE,
+
+    /**
+     * Subscription blocks until the tree is loaded, but no longer than initialization timeout.
+     * Subscription does not block if value is already known from the snapshot.
+     */
+    AWAIT_LOADED_VALUE
+}
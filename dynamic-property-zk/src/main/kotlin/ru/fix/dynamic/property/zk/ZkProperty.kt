@@ -0,0 +1,16 @@
+package ru.fix.dynamic.property.zk
+
+/**
+ * Property value read directly from zookeeper
+ *
+ * @param name property name relative to the config root, nested properties are separated by '/'
+ * @param value raw property value
+ * @param version data version of the zookeeper node
+ * @param modifiedZxid zxid of the last change of the zookeeper node
+ */
+data class ZkProperty(
+    val name: String,
+    val value: String,
+    val version: Int,
+    val modifiedZxid: Long
+)
@@ -0,0 +1,91 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.recipes.cache.ChildData
+import java.time.Duration
+
+/**
+ * Local copy of zookeeper config tree used by [ZkDynamicPropertySource]
+ */
+internal interface ZkPropertyCache : AutoCloseable {
+
+    interface Listener {
+        /**
+         * @param oldData previous node data known to the cache or null if node was unknown
+         * @param data new node data or null if node was removed
+         */
+        fun onNodeChanged(path: String, oldData: ChildData?, data: ChildData?)
+
+        /**
+         * Initial content of the tree is loaded into the cache
+         */
+        fun onInitialized()
+    }
+
+    fun start()
+
+    /**
+     * Never blocks on zookeeper, so it could be called under the property lock.
+     *
+     * @return current data of the node or null if node does not exist
+     * or if the cache loads nodes on demand and the node is not tracked
+     */
+    fun getCurrentData(path: String): ChildData?
+
+    /**
+     * @return false if the cache loads nodes on demand and the node is not loaded
+     */
+    fun isCached(path: String): Boolean = true
+
+    /**
+     * @return absolute paths of all nodes that are currently cached
+     */
+    fun cachedPaths(): Collection<String>
+
+    /**
+     * Starts to cache the node if the cache loads nodes on demand.
+     * Could block while node data is loaded, so it should not be called under the property lock.
+     * Node could be released concurrently right after this method returns, check [isCached] under the lock.
+     */
+    fun track(path: String) {
+    }
+
+    /**
+     * Node lost its last subscription. Cache that loads nodes on demand could stop caching and watching the node.
+     */
+    fun release(path: String) {
+    }
+
+    override fun close()
+
+    companion object {
+        /**
+         * @param pollingInterval used only in [ZkCacheMode.POLLING] mode
+         */
+        fun create(
+            cacheMode: ZkCacheMode,
+            curatorFramework: CuratorFramework,
+            rootPath: String,
+            pollingInterval: Duration,
+            listener: Listener
+        ): ZkPropertyCache = when (cacheMode) {
+            ZkCacheMode.TREE_CACHE -> TreeCachePropertyCache(curatorFramework, rootPath, listener)
+            ZkCacheMode.CURATOR_CACHE -> CuratorCachePropertyCache(curatorFramework, rootPath, listener)
+            ZkCacheMode.LAZY -> LazyPropertyCache(curatorFramework, listener)
+            ZkCacheMode.POLLING -> PollingPropertyCache(curatorFramework, rootPath, pollingInterval, listener)
+        }
+
+        /**
+         * Cache shared with other sources over the same curator client, root path and cache mode.
+         * Closing the returned cache detaches the listener and closes underlying cache when it is not used anymore.
+         */
+        fun createShared(
+            cacheMode: ZkCacheMode,
+            curatorFramework: CuratorFramework,
+            rootPath: String,
+            pollingInterval: Duration,
+            listener: Listener
+        ): ZkPropertyCache =
+            SharedPropertyCacheRegistry.acquire(cacheMode, curatorFramework, rootPath, pollingInterval, listener)
+    }
+}
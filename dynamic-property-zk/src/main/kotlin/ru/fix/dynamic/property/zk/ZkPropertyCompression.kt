@@ -0,0 +1,68 @@
+package ru.fix.dynamic.property.zk
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.InflaterInputStream
+
+/**
+ * Compression of large property values stored in zookeeper nodes, see [ZkPropertyValueCodec]
+ *
+ * @param id identifier of the compression stored in value header, must never change
+ */
+enum class ZkPropertyCompression(internal val id: Byte) {
+    /**
+     * GZIP with the default compression level.
+     * Slower to compress than [DEFLATE] and gives slightly smaller payload.
+     */
+    GZIP(1) {
+        override fun compressingStream(output: OutputStream): OutputStream = GZIPOutputStream(output)
+        override fun decompressingStream(input: InputStream): InputStream = GZIPInputStream(input)
+    },
+
+    /**
+     * Deflate with the fastest compression level.
+     * Several times faster to compress than [GZIP] for the cost of slightly bigger payload.
+     */
+    DEFLATE(2) {
+        override fun compressingStream(output: OutputStream): OutputStream {
+            val deflater = Deflater(Deflater.BEST_SPEED)
+            return object : DeflaterOutputStream(output, deflater) {
+                // stream ends only its own default deflater, native memory of the given one is released here
+                override fun close() {
+                    try {
+                        super.close()
+                    } finally {
+                        deflater.end()
+                    }
+                }
+            }
+        }
+
+        override fun decompressingStream(input: InputStream): InputStream = InflaterInputStream(input)
+    };
+
+    internal abstract fun compressingStream(output: OutputStream): OutputStream
+
+    internal abstract fun decompressingStream(input: InputStream): InputStream
+
+    internal fun compress(data: ByteArray): ByteArray {
+        val output = ByteArrayOutputStream(data.size / 4)
+        compressingStream(output).use { it.write(data) }
+        return output.toByteArray()
+    }
+
+    internal fun decompress(data: ByteArray, offset: Int): ByteArray =
+        decompressingStream(ByteArrayInputStream(data, offset, data.size - offset)).use { it.readBytes() }
+
+    internal companion object {
+        fun byId(id: Byte): ZkPropertyCompression =
+            values().firstOrNull { it.id == id }
+                ?: throw IllegalArgumentException("Unknown property value compression: $id")
+    }
+}
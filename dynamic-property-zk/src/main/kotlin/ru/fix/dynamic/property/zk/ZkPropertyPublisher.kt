@@ -0,0 +1,194 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.api.transaction.CuratorOp
+import org.apache.curator.utils.ZKPaths
+import org.apache.logging.log4j.kotlin.Logging
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+import ru.fix.dynamic.property.api.marshaller.DynamicPropertyMarshaller
+import java.time.Duration
+import java.util.*
+
+/**
+ * Writes properties to the config tree of [ZkDynamicPropertySource].
+ * Set of changes is applied in single zookeeper `multi` transaction,
+ * so clients observe either all changes or none of them.
+ * ```
+ * val publisher = ZkPropertyPublisher(source, marshaller)
+ * publisher.publish(mapOf("timeout" to Duration.ofSeconds(5), "obsolete.flag" to null))
+ *     .awaitPropagation(Duration.ofSeconds(10))
+ * ```
+ * Values are marshalled by [marshaller] and encoded by [ZkPropertyValueCodec].
+ * Each update is guarded by node version read before the transaction:
+ * if another writer changes any of the nodes concurrently, whole transaction fails with
+ * [KeeperException.BadVersionException] or [KeeperException.NodeExistsException].
+ * Values which bytes are equal to the current node content are not written and do not produce change events.
+ *
+ * Values that exceed zookeeper node size limit should be written by [ZkChunkedValueWriter].
+ * Properties written by chunks or by JSON patches are rejected by the publisher, as well as removal of
+ * a node with nested properties: overwriting such node would orphan its subtree.
+ *
+ * Changes published with [ZkRolloutPolicy] are applied by instances of the application gradually:
+ * node keeps the policy together with new and previous value of the property.
+ * ```
+ * publisher.publish(mapOf("pool.size" to 50), ZkRolloutPolicy(window = Duration.ofMinutes(10)))
+ * ```
+ * If the same value is published again with another policy, e.g. to continue canary rollout,
+ * previous value of the original rollout is kept. Removal of the property is never rolled out gradually.
+ *
+ * @param compressionThreshold see [ZkPropertyValueCodec.encode]
+ */
+class ZkPropertyPublisher @JvmOverloads constructor(
+    private val source: ZkDynamicPropertySource,
+    private val marshaller: DynamicPropertyMarshaller,
+    private val compressionThreshold: Int = ZkPropertyValueCodec.DEFAULT_COMPRESSION_THRESHOLD
+) {
+    companion object : Logging {
+        private const val PROPAGATION_CHECK_INTERVAL_MS = 10L
+    }
+
+    /**
+     * @param expectedData written node data by property names, null for removed properties
+     */
+    class Result internal constructor(
+        private val source: ZkDynamicPropertySource,
+        private val expectedData: Map<String, ByteArray?>
+    ) {
+        /**
+         * Properties that were written or removed. Unchanged properties are not included.
+         */
+        val changedProperties: Set<String>
+            get() = expectedData.keys
+
+        /**
+         * Waits until local cache of the source reflects the write.
+         * Listeners of the source are notified asynchronously and could still be running.
+         * In [ZkCacheMode.LAZY] mode the cache keeps only subscribed properties,
+         * so each changed property should have a live subscription in the source.
+         *
+         * @return false if cache does not reflect the write within [timeout],
+         * e.g. because the same properties were changed again by another writer
+         * or the source does not cache some of them
+         */
+        @Throws(InterruptedException::class)
+        fun awaitPropagation(timeout: Duration): Boolean {
+            val deadline = System.nanoTime() + timeout.toNanos()
+            while (!isPropagated()) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false
+                }
+                Thread.sleep(PROPAGATION_CHECK_INTERVAL_MS)
+            }
+            return true
+        }
+
+        private fun isPropagated() = expectedData.all { (name, data) -> source.isPropagated(name, data) }
+    }
+
+    /**
+     * @param changes new property values by property names, null value removes the property
+     * @param rolloutPolicy how new values are rolled out across instances, all instances apply them at once if null
+     */
+    @JvmOverloads
+    @Throws(Exception::class)
+    fun publish(changes: Map<String, Any?>, rolloutPolicy: ZkRolloutPolicy? = null): Result {
+        val curatorFramework = source.curatorFramework
+        val operations = ArrayList<CuratorOp>()
+        val expectedData = LinkedHashMap<String, ByteArray?>()
+        val createdPaths = HashSet<String>()
+
+        changes.forEach { (propertyName, value) ->
+            require(!ZkChunkManifest.isReservedProperty(propertyName)) {
+                "Property name $propertyName contains reserved node"
+            }
+            val path = source.getAbsolutePathForProperty(propertyName)
+            val stat = Stat()
+            val currentData = try {
+                curatorFramework.data.storingStatIn(stat).forPath(path)
+            } catch (exc: KeeperException.NoNodeException) {
+                null
+            }
+            require(currentData == null || !isWrittenByParts(currentData)) {
+                "Property $propertyName is written by chunks or patches and should be changed by its writer"
+            }
+            if (value == null) {
+                require(currentData == null || stat.numChildren == 0) {
+                    "Property $propertyName has nested properties and could not be removed"
+                }
+                if (currentData != null) {
+                    operations.add(curatorFramework.transactionOp().delete().withVersion(stat.version).forPath(path))
+                    expectedData[propertyName] = null
+                }
+            } else {
+                val encodedValue = ZkPropertyValueCodec.encode(marshaller.marshall(value), compressionThreshold)
+                val data = if (rolloutPolicy == null) {
+                    encodedValue
+                } else {
+                    val previousValue = previousValueOf(currentData, encodedValue)
+                    ZkRolloutEnvelope(rolloutPolicy, previousValue, encodedValue).encode()
+                }
+                if (currentData == null) {
+                    addCreateParentOperations(path, operations, createdPaths)
+                    operations.add(curatorFramework.transactionOp().create().forPath(path, data))
+                    createdPaths.add(path)
+                    expectedData[propertyName] = data
+                } else if (!Arrays.equals(currentData, data)) {
+                    operations.add(
+                        curatorFramework.transactionOp().setData().withVersion(stat.version).forPath(path, data)
+                    )
+                    expectedData[propertyName] = data
+                }
+            }
+        }
+
+        if (operations.isNotEmpty()) {
+            curatorFramework.transaction().forOperations(operations)
+        }
+        logger.info {
+            "Published ${expectedData.size} changed properties of ${changes.size} to ${source.rootPath}: " +
+                    "${expectedData.keys}"
+        }
+        return Result(source, expectedData)
+    }
+
+    /**
+     * @return encoded value that instances serve until rollout reaches them
+     */
+    private fun previousValueOf(currentData: ByteArray?, encodedValue: ByteArray): ByteArray? {
+        if (currentData == null) {
+            return null
+        }
+        if (!ZkPropertyValueCodec.isRolloutEnvelope(currentData)) {
+            return currentData
+        }
+        val currentEnvelope = ZkRolloutEnvelope.parse(currentData)
+        return if (Arrays.equals(currentEnvelope.value, encodedValue))
+            currentEnvelope.previousValue
+        else
+            currentEnvelope.value
+    }
+
+    private fun isWrittenByParts(data: ByteArray) =
+        ZkPropertyValueCodec.isChunkManifest(data) || ZkPropertyValueCodec.isJsonPatchLog(data)
+
+    /**
+     * Transaction could not create parents implicitly, so missing parents are created within the same transaction
+     */
+    private fun addCreateParentOperations(
+        path: String,
+        operations: MutableList<CuratorOp>,
+        createdPaths: MutableSet<String>
+    ) {
+        val curatorFramework = source.curatorFramework
+        val missingParents = ArrayDeque<String>()
+        var parent = ZKPaths.getPathAndNode(path).path
+        while (parent != "/" && parent !in createdPaths && curatorFramework.checkExists().forPath(parent) == null) {
+            missingParents.push(parent)
+            parent = ZKPaths.getPathAndNode(parent).path
+        }
+        missingParents.forEach {
+            operations.add(curatorFramework.transactionOp().create().forPath(it, ByteArray(0)))
+            createdPaths.add(it)
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.logging.log4j.kotlin.Logging
+import ru.fix.dynamic.property.std.source.MappedPropertySnapshotReader
+import ru.fix.dynamic.property.std.source.MappedPropertySnapshotWriter
+import java.nio.file.Path
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Local disk copy of zookeeper config tree that allows [ZkDynamicPropertySource] to serve properties
+ * right after restart, before the tree is loaded from zookeeper.
+ * Snapshot is kept in memory-mapped checksummed file written by [MappedPropertySnapshotWriter].
+ * Snapshot keys are absolute node paths, so snapshot of another config root is never served by mistake.
+ *
+ * Values are updated by notifications of [ZkDynamicPropertySource], that are delivered by dispatcher threads.
+ * Snapshot is written only after the cache is initialized and notifications about the loaded tree are delivered,
+ * so it never contains partially loaded tree.
+ * Subsequent changes are coalesced and written at most once per [writeDelay] by single daemon thread.
+ */
+internal class ZkPropertySnapshot(
+    private val snapshotPath: Path,
+    private val rootPathPrefix: String,
+    private val writeDelay: Duration
+) : AutoCloseable {
+
+    companion object : Logging
+
+    /**
+     * Values that were persisted by the previous run or null if there is no valid snapshot
+     */
+    val loadedValues: Map<String, String>? = load()
+
+    private val currentValues = ConcurrentHashMap<String, String>()
+
+    @Volatile
+    private var initialized = false
+
+    private val writeScheduled = AtomicBoolean()
+
+    private val writer: MappedPropertySnapshotWriter? =
+        try {
+            MappedPropertySnapshotWriter(snapshotPath)
+        } catch (exc: Exception) {
+            logger.warn("Zk property snapshot $snapshotPath will not be updated by this source", exc)
+            null
+        }
+
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "zk-property-snapshot-writer").apply { isDaemon = true }
+    }
+
+    private fun load(): Map<String, String>? =
+        try {
+            MappedPropertySnapshotReader(snapshotPath).use { reader ->
+                reader.readIfChanged(MappedPropertySnapshotReader.NO_SEQUENCE)
+                    ?.properties
+                    ?.filterKeys { it.startsWith(rootPathPrefix) }
+            }
+        } catch (exc: Exception) {
+            logger.warn("Failed to read zk property snapshot $snapshotPath", exc)
+            null
+        }
+
+    /**
+     * @param value new node value or null if node was removed
+     */
+    fun onNodeChanged(path: String, value: String?) {
+        if (value == null) {
+            currentValues.remove(path)
+        } else {
+            currentValues[path] = value
+        }
+        if (initialized) {
+            scheduleWrite()
+        }
+    }
+
+    /**
+     * Cache loaded the whole tree and values of all its nodes are passed to [onNodeChanged], snapshot could be written
+     */
+    fun onInitialized() {
+        initialized = true
+        scheduleWrite()
+    }
+
+    private fun scheduleWrite() {
+        if (writer != null && writeScheduled.compareAndSet(false, true)) {
+            executor.schedule(::write, writeDelay.toMillis(), TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun write() {
+        writeScheduled.set(false)
+        try {
+            writer?.write(HashMap(currentValues))
+        } catch (exc: Exception) {
+            logger.error("Failed to write zk property snapshot $snapshotPath", exc)
+        }
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+        try {
+            executor.awaitTermination(writeDelay.toMillis(), TimeUnit.MILLISECONDS)
+        } catch (exc: InterruptedException) {
+            logger.error("Failed to await zk property snapshot writer termination", exc)
+        }
+        if (initialized) {
+            write()
+        }
+        writer?.close()
+    }
+}
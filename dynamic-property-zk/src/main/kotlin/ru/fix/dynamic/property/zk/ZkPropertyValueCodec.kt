@@ -0,0 +1,104 @@
+package ru.fix.dynamic.property.zk
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * Encodes property values stored in zookeeper nodes.
+ * ```
+ * plain value       UTF-8 bytes of the value
+ * compressed value  0x00 'D' 'P' <compression id> <compressed UTF-8 bytes of the value>
+ * chunk manifest    0x00 'D' 'P' 'M' <manifest of the value split into chunks, see ZkChunkedValueWriter>
+ * rollout envelope  0x00 'D' 'P' 'R' <rollout policy, previous and new value, see ZkRolloutPolicy>
+ * JSON Patch log    0x00 'D' 'P' 'J' <base version and ids of patch nodes applied to base document, see ZkJsonPatchWriter>
+ * ```
+ * Property values never start with NUL character, so plain values could not be confused with encoded ones.
+ * [decode] handles only plain and compressed values.
+ * [ZkDynamicPropertySource] reads all forms, so values could be compressed, chunked, rolled out or patched
+ * without changes on the reader side.
+ */
+object ZkPropertyValueCodec {
+
+    /**
+     * Values smaller than this number of UTF-8 bytes are not compressed by default
+     */
+    const val DEFAULT_COMPRESSION_THRESHOLD = 16 * 1024
+
+    internal const val HEADER_SIZE = 4
+    internal val HEADER_PREFIX = byteArrayOf(0, 'D'.toByte(), 'P'.toByte())
+    internal const val CHUNK_MANIFEST_ID: Byte = 0x4D
+    internal const val ROLLOUT_ENVELOPE_ID: Byte = 0x52
+    internal const val JSON_PATCH_LOG_ID: Byte = 0x4A
+
+    /**
+     * Compresses value if its size exceeds [compressionThreshold] and compression actually reduces the size.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun encode(
+        value: String,
+        compressionThreshold: Int = DEFAULT_COMPRESSION_THRESHOLD,
+        compression: ZkPropertyCompression = ZkPropertyCompression.DEFLATE
+    ): ByteArray {
+        val data = value.toByteArray(StandardCharsets.UTF_8)
+        if (data.size < compressionThreshold) {
+            return data
+        }
+        val compressed = compression.compress(data)
+        if (compressed.size + HEADER_SIZE >= data.size) {
+            return data
+        }
+        val encoded = ByteArray(HEADER_SIZE + compressed.size)
+        System.arraycopy(HEADER_PREFIX, 0, encoded, 0, HEADER_PREFIX.size)
+        encoded[HEADER_PREFIX.size] = compression.id
+        System.arraycopy(compressed, 0, encoded, HEADER_SIZE, compressed.size)
+        return encoded
+    }
+
+    /**
+     * Decodes plain or compressed value.
+     * Chunk manifests, rollout envelopes and JSON Patch logs are not values themselves
+     * and are resolved by [ZkDynamicPropertySource].
+     */
+    @JvmStatic
+    fun decode(data: ByteArray): String {
+        if (!isCompressed(data)) {
+            return String(data, StandardCharsets.UTF_8)
+        }
+        val compression = ZkPropertyCompression.byId(data[HEADER_PREFIX.size])
+        return String(compression.decompress(data, HEADER_SIZE), StandardCharsets.UTF_8)
+    }
+
+    @JvmStatic
+    fun isCompressed(data: ByteArray): Boolean =
+        hasHeader(data) &&
+                data[HEADER_PREFIX.size] != CHUNK_MANIFEST_ID &&
+                data[HEADER_PREFIX.size] != ROLLOUT_ENVELOPE_ID &&
+                data[HEADER_PREFIX.size] != JSON_PATCH_LOG_ID
+
+    /**
+     * @return true if node contains manifest of the value split into chunks instead of the value itself
+     */
+    @JvmStatic
+    fun isChunkManifest(data: ByteArray): Boolean =
+        hasHeader(data) && data[HEADER_PREFIX.size] == CHUNK_MANIFEST_ID
+
+    /**
+     * @return true if node contains value published with [ZkRolloutPolicy]
+     */
+    @JvmStatic
+    fun isRolloutEnvelope(data: ByteArray): Boolean =
+        hasHeader(data) && data[HEADER_PREFIX.size] == ROLLOUT_ENVELOPE_ID
+
+    /**
+     * @return true if node contains JSON document as base version and patches to it
+     */
+    @JvmStatic
+    fun isJsonPatchLog(data: ByteArray): Boolean =
+        hasHeader(data) && data[HEADER_PREFIX.size] == JSON_PATCH_LOG_ID
+
+    private fun hasHeader(data: ByteArray): Boolean =
+        data.size >= HEADER_SIZE &&
+                data[0] == HEADER_PREFIX[0] &&
+                data[1] == HEADER_PREFIX[1] &&
+                data[2] == HEADER_PREFIX[2]
+}
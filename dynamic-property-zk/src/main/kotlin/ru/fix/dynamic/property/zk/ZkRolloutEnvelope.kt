@@ -0,0 +1,81 @@
+package ru.fix.dynamic.property.zk
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.time.Duration
+
+/**
+ * Content of the property node published with [ZkRolloutPolicy].
+ * Keeps the policy together with new and previous value,
+ * so any instance, including the one started in the middle of the rollout, serves the value of its bucket.
+ * ```
+ * 0  header           0x00 'D' 'P' 'R'
+ * 4  window           long  millis
+ * 12 from percent     int
+ * 16 to percent       int
+ * 20 previous length  int   -1 if property did not exist
+ * 24 previous value   value encoded by ZkPropertyValueCodec
+ * .. value            value encoded by ZkPropertyValueCodec
+ * ```
+ */
+internal class ZkRolloutEnvelope(
+    val policy: ZkRolloutPolicy,
+    /**
+     * Null if property did not exist before the rollout
+     */
+    val previousValue: ByteArray?,
+    val value: ByteArray
+) {
+    companion object {
+        fun parse(data: ByteArray): ZkRolloutEnvelope {
+            require(ZkPropertyValueCodec.isRolloutEnvelope(data)) { "Node data is not a rollout envelope" }
+            val body = ByteArrayInputStream(
+                data,
+                ZkPropertyValueCodec.HEADER_SIZE,
+                data.size - ZkPropertyValueCodec.HEADER_SIZE
+            )
+            DataInputStream(body).use { input ->
+                val policy = ZkRolloutPolicy(
+                    window = Duration.ofMillis(input.readLong()),
+                    fromPercent = input.readInt(),
+                    toPercent = input.readInt()
+                )
+                val previousLength = input.readInt()
+                val previousValue = if (previousLength < 0) null else ByteArray(previousLength).also {
+                    input.readFully(it)
+                }
+                return ZkRolloutEnvelope(policy, previousValue, input.readBytes())
+            }
+        }
+    }
+
+    fun encode(): ByteArray {
+        val output = ByteArrayOutputStream()
+        output.write(ZkPropertyValueCodec.HEADER_PREFIX)
+        output.write(ZkPropertyValueCodec.ROLLOUT_ENVELOPE_ID.toInt())
+        DataOutputStream(output).use { data ->
+            data.writeLong(policy.window.toMillis())
+            data.writeInt(policy.fromPercent)
+            data.writeInt(policy.toPercent)
+            data.writeInt(previousValue?.size ?: -1)
+            previousValue?.let { data.write(it) }
+            data.write(value)
+        }
+        return output.toByteArray()
+    }
+
+    /**
+     * @param modifiedTime epoch millis when the node was modified
+     * @return encoded value served by the instance in the [bucket] at [now]
+     * and epoch millis when it switches to new value, null if it already switched or never switches
+     */
+    fun servedValue(modifiedTime: Long, bucket: Int, now: Long): Pair<ByteArray?, Long?> {
+        val applyTime = policy.applyTime(modifiedTime, bucket)
+        return if (applyTime != null && applyTime <= now)
+            Pair(value, null)
+        else
+            Pair(previousValue, applyTime)
+    }
+}
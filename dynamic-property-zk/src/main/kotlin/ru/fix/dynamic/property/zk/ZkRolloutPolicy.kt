@@ -0,0 +1,65 @@
+package ru.fix.dynamic.property.zk
+
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.zip.CRC32
+
+/**
+ * How new value of the property is rolled out across instances of the application.
+ * Each instance is placed into one of [BUCKET_COUNT] buckets by hash of its instance id and property name,
+ * so the same instance always gets the same place in the rollout of the same property.
+ *
+ * Instances in the first [fromPercent] of buckets apply new value immediately.
+ * Instances in buckets between [fromPercent] and [toPercent] apply new value with delay
+ * spread evenly over [window] since the node was modified.
+ * Instances in the rest of buckets keep serving previous value until the property is published again.
+ * ```
+ * // every instance applies new value within 10 minutes
+ * ZkRolloutPolicy(window = Duration.ofMinutes(10))
+ * // 5% of instances apply new value immediately, others keep previous value
+ * ZkRolloutPolicy(toPercent = 5)
+ * // the same value is then rolled out to the rest of instances within 10 minutes
+ * ZkRolloutPolicy(window = Duration.ofMinutes(10), fromPercent = 5)
+ * ```
+ * Policy is stored in the property node together with new and previous value, see [ZkPropertyPublisher].
+ */
+data class ZkRolloutPolicy @JvmOverloads constructor(
+    val window: Duration = Duration.ZERO,
+    val fromPercent: Int = 0,
+    val toPercent: Int = 100
+) {
+    companion object {
+        const val BUCKET_COUNT = 10_000
+        private const val BUCKETS_PER_PERCENT = BUCKET_COUNT / 100
+
+        /**
+         * @return place of the instance in the rollout of the property, from 0 until [BUCKET_COUNT]
+         */
+        @JvmStatic
+        fun bucketOf(instanceId: String, propertyName: String): Int {
+            val crc = CRC32().apply { update("$instanceId/$propertyName".toByteArray(StandardCharsets.UTF_8)) }
+            return (crc.value % BUCKET_COUNT).toInt()
+        }
+    }
+
+    init {
+        require(!window.isNegative) { "Rollout window should not be negative: $window" }
+        require(fromPercent in 0..toPercent && toPercent <= 100) {
+            "Rollout percents should satisfy 0 <= from <= to <= 100: from $fromPercent, to $toPercent"
+        }
+    }
+
+    /**
+     * @param modifiedTime epoch millis when the node was modified
+     * @return epoch millis when instance in the [bucket] applies new value, null if it never applies it
+     */
+    fun applyTime(modifiedTime: Long, bucket: Int): Long? {
+        val from = fromPercent * BUCKETS_PER_PERCENT
+        val to = toPercent * BUCKETS_PER_PERCENT
+        return when {
+            bucket < from -> modifiedTime
+            bucket >= to -> null
+            else -> modifiedTime + window.toMillis() * (bucket - from) / (to - from)
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.CuratorEvent
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.data.Stat
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Reads zookeeper subtree recursively through background requests without setting watches.
+ * Keeps at most [parallelism] requests in flight.
+ * Read results are passed to the visitor within the calling thread,
+ * so memory consumption does not depend on the size of the tree.
+ */
+internal class ZkTreeReader(
+    private val curatorFramework: CuratorFramework,
+    private val parallelism: Int,
+    private val timeout: Duration
+) {
+    init {
+        require(parallelism > 0) { "Parallelism should be positive: $parallelism" }
+    }
+
+    interface Visitor {
+        /**
+         * @return true if reader should list children of the node
+         */
+        fun onNode(path: String, data: ByteArray?, stat: Stat): Boolean
+    }
+
+    private sealed class Request(val path: String) {
+        class ReadData(path: String) : Request(path)
+        class ReadChildren(path: String) : Request(path)
+    }
+
+    private sealed class Result {
+        class Data(val path: String, val data: ByteArray?, val stat: Stat) : Result()
+        class Children(val path: String, val children: List<String>) : Result()
+        object Missing : Result()
+        class Failure(val exception: Exception) : Result()
+    }
+
+    /**
+     * Reads all descendants of [rootPath]. Data of [rootPath] node itself is not read.
+     * Nodes removed during the read are skipped.
+     */
+    @Throws(TimeoutException::class)
+    fun read(rootPath: String, visitor: Visitor) {
+        val deadline = System.nanoTime() + timeout.toNanos()
+        val requests = ArrayDeque<Request>()
+        val results = LinkedBlockingQueue<Result>()
+        var inFlight = 0
+
+        requests.add(Request.ReadChildren(rootPath))
+
+        while (requests.isNotEmpty() || inFlight > 0) {
+            while (requests.isNotEmpty() && inFlight < parallelism) {
+                send(requests.poll(), results)
+                inFlight++
+            }
+
+            val result = results.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                ?: throw TimeoutException("Failed to read zk tree $rootPath within $timeout")
+            inFlight--
+
+            when (result) {
+                is Result.Data -> {
+                    if (visitor.onNode(result.path, result.data, result.stat) && result.stat.numChildren > 0) {
+                        requests.add(Request.ReadChildren(result.path))
+                    }
+                }
+                is Result.Children -> {
+                    result.children.forEach { child -> requests.add(Request.ReadData("${result.path}/$child")) }
+                }
+                is Result.Missing -> {
+                    // node was removed during the read
+                }
+                is Result.Failure -> throw result.exception
+            }
+        }
+    }
+
+    private fun send(request: Request, results: LinkedBlockingQueue<Result>) {
+        try {
+            when (request) {
+                is Request.ReadData -> curatorFramework.data
+                    .inBackground { _, event ->
+                        results.add(toResult(event) { Result.Data(request.path, event.data, event.stat) })
+                    }
+                    .forPath(request.path)
+                is Request.ReadChildren -> curatorFramework.children
+                    .inBackground { _, event ->
+                        results.add(toResult(event) { Result.Children(request.path, event.children) })
+                    }
+                    .forPath(request.path)
+            }
+        } catch (exc: Exception) {
+            results.add(Result.Failure(exc))
+        }
+    }
+
+    private fun toResult(event: CuratorEvent, onSuccess: () -> Result): Result =
+        when (val code = KeeperException.Code.get(event.resultCode)) {
+            KeeperException.Code.OK -> onSuccess()
+            KeeperException.Code.NONODE -> Result.Missing
+            else -> Result.Failure(KeeperException.create(code, event.path))
+        }
+}
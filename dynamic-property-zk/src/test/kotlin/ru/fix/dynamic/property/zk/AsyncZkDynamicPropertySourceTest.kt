@@ -0,0 +1,124 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.RetryOneTime
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+class AsyncZkDynamicPropertySourceTest {
+    companion object {
+        private const val PROPERTIES_LOCATION = "/zookeeper/p"
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+    }
+
+    @AfterEach
+    fun afterEach() {
+        zkTestingServer.close()
+    }
+
+    @Test
+    fun `source is created without waiting for zookeeper and serves default values`() {
+        val unavailableClient = CuratorFrameworkFactory.newClient("127.0.0.1:1", RetryOneTime(100))
+
+        ZkDynamicPropertySource.createAsync(
+            unavailableClient,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1)
+        ).use { source ->
+            val property = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.of("default"))
+            assertEquals("default", property.get())
+            assertFalse(source.readiness().isDone)
+        }
+        unavailableClient.close()
+    }
+
+    @Test
+    fun `source completes readiness when tree is loaded`() {
+        setServerProperty("$PROPERTIES_LOCATION/name", "value")
+
+        ZkDynamicPropertySource.createAsync(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1)
+        ).use { source ->
+            val property = SourcedProperty(source, "name", String::class.java, OptionalDefaultValue.of("default"))
+            source.readiness().get(1, TimeUnit.MINUTES)
+            assertEquals("value", property.get())
+        }
+    }
+
+    @Test
+    fun `subscription awaits loaded value`() {
+        setServerProperty("$PROPERTIES_LOCATION/name", "value")
+
+        ZkDynamicPropertySource.createAsync(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1),
+            ZkPendingSubscriptionPolicy.AWAIT_LOADED_VALUE
+        ).use { source ->
+            val values = CopyOnWriteArrayList<String>()
+            val subscription = source.createSubscription(
+                "name",
+                String::class.java,
+                OptionalDefaultValue.of("default")
+            ).setAndCallListener { values.add(it) }
+
+            source.readiness().get(1, TimeUnit.MINUTES)
+            assertEquals(listOf("value"), values)
+            subscription.close()
+        }
+    }
+
+    @Test
+    fun `subscription without default value awaits loaded value`() {
+        setServerProperty("$PROPERTIES_LOCATION/name", "value")
+
+        ZkDynamicPropertySource.createAsync(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1),
+            ZkPendingSubscriptionPolicy.USE_DEFAULT_VALUE
+        ).use { source ->
+            val values = CopyOnWriteArrayList<String>()
+            val subscription = source.createSubscription(
+                "name",
+                String::class.java,
+                OptionalDefaultValue.none()
+            ).setAndCallListener { values.add(it) }
+
+            assertEquals(listOf("value"), values)
+            source.readiness().get(1, TimeUnit.MINUTES)
+            assertEquals(listOf("value"), values)
+            subscription.close()
+        }
+    }
+
+    private fun setServerProperty(path: String, value: String) {
+        zkTestingServer.client
+            .create()
+            .creatingParentsIfNeeded()
+            .forPath(path, value.toByteArray(StandardCharsets.UTF_8))
+    }
+}
@@ -0,0 +1,47 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs [ZkDynamicPropertySourceTest] scenarios against [ZkCacheMode.CURATOR_CACHE]
+ */
+class CuratorCacheZkDynamicPropertySourceTest : ZkDynamicPropertySourceTest() {
+    override val cacheMode = ZkCacheMode.CURATOR_CACHE
+
+    @Test
+    fun `chunks of large values are neither cached nor reported`() {
+        ZkChunkedValueWriter(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            chunkSize = 1024,
+            compressionThreshold = Int.MAX_VALUE
+        ).write(TEST_PROP_KEY, (1..2000).joinToString(","))
+
+        val initialized = CountDownLatch(1)
+        val reportedPaths = ConcurrentHashMap.newKeySet<String>()
+        CuratorCachePropertyCache(zkTestingServer.client, PROPERTIES_LOCATION, object : ZkPropertyCache.Listener {
+            override fun onNodeChanged(path: String, oldData: ChildData?, data: ChildData?) {
+                reportedPaths.add(path)
+            }
+
+            override fun onInitialized() {
+                initialized.countDown()
+            }
+        }).use { cache ->
+            cache.start()
+            assertTrue(initialized.await(10, TimeUnit.SECONDS))
+
+            assertEquals(
+                setOf(PROPERTIES_LOCATION, "$PROPERTIES_LOCATION/$TEST_PROP_KEY"),
+                cache.cachedPaths().toSet()
+            )
+            assertTrue(reportedPaths.none { it.contains(ZkChunkManifest.CHUNKS_NODE) })
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ru.fix.dynamic.property.zk
+
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs [ZkDynamicPropertySourceTest] scenarios against [ZkCacheMode.LAZY]
+ */
+class LazyZkDynamicPropertySourceTest : ZkDynamicPropertySourceTest() {
+    override val cacheMode = ZkCacheMode.LAZY
+
+    @Test
+    fun `node is reloaded after last subscription closed and new subscription created`() {
+        setServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "first")
+
+        val firstValues = LinkedBlockingDeque<String>()
+        val firstSubscription = source.createSubscription(
+            TEST_PROP_KEY,
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { firstValues.add(it) }
+        assertEquals("first", firstValues.removeFirst())
+
+        firstSubscription.close()
+        changeServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "second")
+
+        val secondValues = LinkedBlockingDeque<String>()
+        val secondSubscription = source.createSubscription(
+            TEST_PROP_KEY,
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { secondValues.add(it) }
+        assertEquals("second", secondValues.removeFirst())
+
+        changeServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "third")
+        await().atMost(10, TimeUnit.SECONDS).until { secondValues.peekLast() == "third" }
+        assertEquals(listOf<String>(), firstValues.toList())
+
+        secondSubscription.close()
+    }
+
+    @Test
+    fun `subscription created concurrently with release of the node receives updates`() {
+        setServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "first")
+
+        val executor = Executors.newFixedThreadPool(4)
+        val futures = (1..200).map {
+            executor.submit {
+                source.createSubscription(TEST_PROP_KEY, String::class.java, OptionalDefaultValue.of("default"))
+                    .setAndCallListener { }
+                    .close()
+            }
+        }
+        futures.forEach { it.get(10, TimeUnit.SECONDS) }
+        executor.shutdown()
+
+        val values = LinkedBlockingDeque<String>()
+        val subscription = source.createSubscription(
+            TEST_PROP_KEY,
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { values.add(it) }
+        assertEquals("first", values.removeFirst())
+
+        changeServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "second")
+        await().atMost(10, TimeUnit.SECONDS).until { values.peekLast() == "second" }
+
+        subscription.close()
+    }
+}
@@ -0,0 +1,38 @@
+package ru.fix.dynamic.property.zk
+
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import java.time.Duration
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs [ZkDynamicPropertySourceTest] scenarios against [ZkCacheMode.POLLING]
+ */
+class PollingZkDynamicPropertySourceTest : ZkDynamicPropertySourceTest() {
+    override val cacheMode = ZkCacheMode.POLLING
+    override val pollingInterval: Duration = Duration.ofMillis(20)
+
+    @Test
+    fun `nested property created and removed between polls is published`() {
+        val values = LinkedBlockingDeque<String>()
+        source.createSubscription(
+            "nested/branch/property",
+            String::class.java,
+            OptionalDefaultValue.of("default")
+        ).setAndCallListener { values.add(it) }
+        assertEquals("default", values.removeFirst())
+
+        setServerProperty("$PROPERTIES_LOCATION/nested/branch/property", "created")
+        await().atMost(10, TimeUnit.SECONDS).until { values.peekLast() == "created" }
+
+        changeServerProperty("$PROPERTIES_LOCATION/nested/branch/property", "changed")
+        await().atMost(10, TimeUnit.SECONDS).until { values.peekLast() == "changed" }
+
+        zkTestingServer.client.delete().deletingChildrenIfNeeded().forPath("$PROPERTIES_LOCATION/nested")
+        await().atMost(10, TimeUnit.SECONDS).until { values.peekLast() == "default" }
+        assertEquals(listOf("created", "changed", "default"), values.toList())
+    }
+}
@@ -0,0 +1,85 @@
+package ru.fix.dynamic.property.zk
+
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+class SharedZkPropertyCacheTest {
+    companion object {
+        private const val PROPERTIES_LOCATION = "/zookeeper/shared"
+        private const val TEST_PROP_KEY = "test_prop_key"
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+    }
+
+    @AfterEach
+    fun afterEach() {
+        zkTestingServer.close()
+    }
+
+    private fun createSource(configPath: String = PROPERTIES_LOCATION) = ZkDynamicPropertySource(
+        zkTestingServer.client,
+        configPath,
+        MarshallerBuilder.createDefault(),
+        Duration.ofMinutes(1)
+    )
+
+    @Test
+    fun `sources of the same root share cache and keep working after one of them is closed`() {
+        zkTestingServer.client.create().creatingParentsIfNeeded()
+            .forPath("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "first".toByteArray(StandardCharsets.UTF_8))
+        val initialCacheCount = SharedPropertyCacheRegistry.sharedCacheCount()
+
+        val firstSource = createSource()
+        val secondSource = createSource("$PROPERTIES_LOCATION/")
+        assertEquals(initialCacheCount + 1, SharedPropertyCacheRegistry.sharedCacheCount())
+
+        val firstValues = LinkedBlockingDeque<String>()
+        firstSource.createSubscription(TEST_PROP_KEY, String::class.java, OptionalDefaultValue.of("default"))
+            .setAndCallListener { firstValues.add(it) }
+        val secondValues = LinkedBlockingDeque<String>()
+        val secondSubscription = secondSource
+            .createSubscription(TEST_PROP_KEY, String::class.java, OptionalDefaultValue.of("default"))
+            .setAndCallListener { secondValues.add(it) }
+        assertEquals("first", firstValues.peekLast())
+        assertEquals("first", secondValues.peekLast())
+
+        firstSource.close()
+        assertEquals(initialCacheCount + 1, SharedPropertyCacheRegistry.sharedCacheCount())
+
+        zkTestingServer.client.setData()
+            .forPath("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "second".toByteArray(StandardCharsets.UTF_8))
+        await().atMost(10, TimeUnit.SECONDS).until { secondValues.peekLast() == "second" }
+        assertEquals(listOf("first"), firstValues.toList())
+
+        secondSubscription.close()
+        secondSource.close()
+        assertEquals(initialCacheCount, SharedPropertyCacheRegistry.sharedCacheCount())
+    }
+
+    @Test
+    fun `sources of different roots do not share cache`() {
+        val initialCacheCount = SharedPropertyCacheRegistry.sharedCacheCount()
+
+        createSource("$PROPERTIES_LOCATION/first").use {
+            createSource("$PROPERTIES_LOCATION/second").use {
+                assertEquals(initialCacheCount + 2, SharedPropertyCacheRegistry.sharedCacheCount())
+            }
+        }
+        assertEquals(initialCacheCount, SharedPropertyCacheRegistry.sharedCacheCount())
+    }
+}
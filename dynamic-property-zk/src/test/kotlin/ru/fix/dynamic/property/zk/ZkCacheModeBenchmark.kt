@@ -0,0 +1,88 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.logging.log4j.kotlin.Logging
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+
+/**
+ * Compares startup time and heap usage of [ZkCacheMode]s against embedded ZooKeeper.
+ * Run manually: `./gradlew :dynamic-property-zk:test --tests '*ZkCacheModeBenchmark' -Dbenchmark=true`
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ZkCacheModeBenchmark {
+    companion object : Logging {
+        private const val ROOT_PATH = "/benchmark/config"
+        private const val NODE_COUNT = 5_000
+        private const val ITERATIONS = 5
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+        val value = "x".repeat(100).toByteArray(StandardCharsets.UTF_8)
+        (1..NODE_COUNT).forEach { index ->
+            zkTestingServer.client
+                .create()
+                .creatingParentsIfNeeded()
+                .forPath("$ROOT_PATH/group-${index % 50}/prop-$index", value)
+        }
+    }
+
+    @AfterEach
+    fun afterEach() {
+        zkTestingServer.close()
+    }
+
+    @Test
+    fun `compare startup time and memory of cache modes`() {
+        ZkCacheMode.values().forEach { cacheMode ->
+            // warm up
+            startAndMeasure(cacheMode)
+
+            val measurements = (1..ITERATIONS).map { startAndMeasure(cacheMode) }
+            logger.info {
+                "$cacheMode: $NODE_COUNT nodes, " +
+                        "average startup ${measurements.map { it.first }.average()} ms, " +
+                        "average heap ${measurements.map { it.second }.average() / 1024} KB"
+            }
+        }
+    }
+
+    /**
+     * @return startup time in milliseconds and retained heap in bytes
+     */
+    private fun startAndMeasure(cacheMode: ZkCacheMode): Pair<Long, Long> {
+        val client = zkTestingServer.createClient()
+        val heapBefore = usedHeap()
+        val start = System.nanoTime()
+        val source = ZkDynamicPropertySource(
+            client,
+            ROOT_PATH,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1),
+            cacheMode
+        )
+        val startupMillis = Duration.ofNanos(System.nanoTime() - start).toMillis()
+        val heapAfter = usedHeap()
+        source.close()
+        client.close()
+        return startupMillis to (heapAfter - heapBefore)
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            System.gc()
+            Thread.sleep(50)
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+}
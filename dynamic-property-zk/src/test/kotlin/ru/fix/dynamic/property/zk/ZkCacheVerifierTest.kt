@@ -0,0 +1,133 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.recipes.cache.ChildData
+import org.apache.zookeeper.data.Stat
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+class ZkCacheVerifierTest {
+    companion object {
+        private const val ROOT_PATH = "/zookeeper/verified"
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+
+    /**
+     * Content of the imitated local cache
+     */
+    private val cache = ConcurrentHashMap<String, ChildData>()
+
+    private val divergences = ConcurrentHashMap<String, String>()
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+    }
+
+    @AfterEach
+    fun afterEach() {
+        zkTestingServer.close()
+    }
+
+    private fun createVerifier(checksPerSecond: Int = 100) = ZkCacheVerifier(
+        curatorFramework = zkTestingServer.client,
+        rootPath = ROOT_PATH,
+        cachedPaths = { cache.keys },
+        cachedData = { cache[it] },
+        checkChildren = true,
+        checksPerSecond = checksPerSecond,
+        gracePeriod = Duration.ofMillis(100),
+        onDivergence = { path, data ->
+            divergences[path] = data?.data?.toString(StandardCharsets.UTF_8) ?: "removed"
+            // source serves repaired data instead of the cache
+            if (data == null) {
+                cache.remove(path)
+            } else {
+                cache[path] = data
+            }
+        }
+    )
+
+    private fun writeNode(path: String, value: String) {
+        zkTestingServer.client.create().orSetData().creatingParentsIfNeeded()
+            .forPath(path, value.toByteArray(StandardCharsets.UTF_8))
+    }
+
+    private fun cacheNode(path: String) {
+        val stat = Stat()
+        cache[path] = ChildData(path, stat, zkTestingServer.client.data.storingStatIn(stat).forPath(path))
+    }
+
+    @Test
+    fun `stale, removed and missing nodes are reported while up to date nodes are not`() {
+        writeNode("$ROOT_PATH/actual", "actual")
+        writeNode("$ROOT_PATH/stale", "old")
+        writeNode("$ROOT_PATH/removed", "removed")
+        listOf(ROOT_PATH, "$ROOT_PATH/actual", "$ROOT_PATH/stale", "$ROOT_PATH/removed").forEach { cacheNode(it) }
+
+        writeNode("$ROOT_PATH/stale", "new")
+        zkTestingServer.client.delete().forPath("$ROOT_PATH/removed")
+        writeNode("$ROOT_PATH/missing", "missing")
+        writeNode("$ROOT_PATH/.chunks/property", "chunk")
+
+        createVerifier().use { verifier ->
+            verifier.start()
+            await().atMost(10, TimeUnit.SECONDS).until { divergences.size == 3 }
+            // repaired nodes are not reported again by the following rounds
+            Thread.sleep(500)
+            assertEquals(
+                mapOf(
+                    "$ROOT_PATH/stale" to "new",
+                    "$ROOT_PATH/removed" to "removed",
+                    "$ROOT_PATH/missing" to "missing"
+                ),
+                divergences.toMap()
+            )
+            assertEquals(3L, verifier.divergenceCount)
+        }
+    }
+
+    @Test
+    fun `node that cache catches up with during grace period is not reported`() {
+        writeNode("$ROOT_PATH/property", "old")
+        listOf(ROOT_PATH, "$ROOT_PATH/property").forEach { cacheNode(it) }
+        writeNode("$ROOT_PATH/property", "new")
+
+        ZkCacheVerifier(
+            curatorFramework = zkTestingServer.client,
+            rootPath = ROOT_PATH,
+            cachedPaths = { cache.keys },
+            cachedData = { cache[it] },
+            checkChildren = true,
+            checksPerSecond = 100,
+            gracePeriod = Duration.ofSeconds(1),
+            onDivergence = { path, _ -> divergences[path] = "diverged" }
+        ).use { verifier ->
+            verifier.start()
+            // event reaches the cache while verifier waits for it
+            Thread.sleep(300)
+            cacheNode("$ROOT_PATH/property")
+            Thread.sleep(2000)
+            assertEquals(emptyMap<String, String>(), divergences.toMap())
+            assertEquals(0L, verifier.divergenceCount)
+        }
+    }
+
+    @Test
+    fun `check rate that could not be scheduled is rejected`() {
+        assertThrows<IllegalArgumentException> { createVerifier(checksPerSecond = 0) }
+        assertThrows<IllegalArgumentException> {
+            createVerifier(checksPerSecond = ZkCacheVerifier.MAX_CHECKS_PER_SECOND + 1)
+        }
+        createVerifier(checksPerSecond = ZkCacheVerifier.MAX_CHECKS_PER_SECOND).use { it.start() }
+    }
+}
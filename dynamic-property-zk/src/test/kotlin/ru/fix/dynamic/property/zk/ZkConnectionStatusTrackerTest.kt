@@ -0,0 +1,65 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.state.ConnectionState
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+class ZkConnectionStatusTrackerTest {
+
+    private val start = Instant.parse("2020-01-01T00:00:00Z")
+
+    @Test
+    fun `config is stale until tree is loaded`() {
+        val tracker = ZkConnectionStatusTracker(ConnectionState.CONNECTED, Clock.fixed(start, ZoneOffset.UTC))
+        assertEquals(start, tracker.status.get().staleSince)
+
+        tracker.onInitialized()
+        assertFalse(tracker.status.get().isStale)
+        assertEquals(Duration.ZERO, tracker.status.get().staleDuration())
+    }
+
+    @Test
+    fun `config is stale since connection is suspended until reconnect`() {
+        var now = start
+        val clock = object : Clock() {
+            override fun getZone() = ZoneOffset.UTC
+            override fun withZone(zone: ZoneId?) = this
+            override fun instant() = now
+        }
+        val tracker = ZkConnectionStatusTracker(ConnectionState.CONNECTED, clock)
+        tracker.onInitialized()
+
+        val statuses = ArrayList<ZkConnectionStatus>()
+        val subscription = tracker.status.createSubscription()
+            .setAndCallListener { _, newStatus -> statuses.add(newStatus) }
+
+        now = start.plusSeconds(10)
+        tracker.onConnectionStateChanged(ConnectionState.SUSPENDED)
+        now = start.plusSeconds(20)
+        tracker.onConnectionStateChanged(ConnectionState.LOST)
+
+        val lost = tracker.status.get()
+        assertTrue(lost.isStale)
+        assertEquals(start.plusSeconds(10), lost.staleSince)
+        assertEquals(Duration.ofSeconds(20), lost.staleDuration(start.plusSeconds(30)))
+
+        tracker.onConnectionStateChanged(ConnectionState.RECONNECTED)
+        assertEquals(
+            listOf(
+                ZkConnectionStatus(ConnectionState.CONNECTED, null),
+                ZkConnectionStatus(ConnectionState.SUSPENDED, start.plusSeconds(10)),
+                ZkConnectionStatus(ConnectionState.LOST, start.plusSeconds(10)),
+                ZkConnectionStatus(ConnectionState.RECONNECTED, null)
+            ),
+            statuses
+        )
+        subscription.close()
+    }
+}
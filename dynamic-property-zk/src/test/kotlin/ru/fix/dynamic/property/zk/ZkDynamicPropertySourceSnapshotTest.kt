@@ -0,0 +1,139 @@
+package ru.fix.dynamic.property.zk
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.RetryOneTime
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import ru.fix.dynamic.property.api.source.DynamicPropertySource
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.dynamic.property.std.source.MappedPropertySnapshotReader
+import ru.fix.dynamic.property.std.source.MappedPropertySnapshotWriter
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+class ZkDynamicPropertySourceSnapshotTest {
+    companion object {
+        private const val PROPERTIES_LOCATION = "/zookeeper/p"
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+    private lateinit var snapshotPath: Path
+
+    /**
+     * Keeps strong references to subscriptions during the test
+     */
+    private val subscriptions = ArrayList<DynamicPropertySource.Subscription<String>>()
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+        snapshotPath = Files.createTempFile("zk-property", ".snapshot")
+    }
+
+    @AfterEach
+    fun afterEach() {
+        zkTestingServer.close()
+        Files.deleteIfExists(snapshotPath)
+    }
+
+    @Test
+    fun `source persists loaded tree and its changes to snapshot`() {
+        setServerProperty("$PROPERTIES_LOCATION/host", "localhost")
+
+        createSource(zkTestingServer.client).use { source ->
+            val port = SourcedProperty(source, "port", String::class.java, OptionalDefaultValue.of("0"))
+            setServerProperty("$PROPERTIES_LOCATION/port", "8080")
+            await().atMost(10, TimeUnit.SECONDS).until { port.get() == "8080" }
+        }
+
+        val snapshot = MappedPropertySnapshotReader(snapshotPath).use {
+            it.readIfChanged(MappedPropertySnapshotReader.NO_SEQUENCE)!!
+        }
+        assertEquals("localhost", snapshot.properties["$PROPERTIES_LOCATION/host"])
+        assertEquals("8080", snapshot.properties["$PROPERTIES_LOCATION/port"])
+    }
+
+    @Test
+    fun `source serves snapshot values when zookeeper is not available`() {
+        writeSnapshot(
+            mapOf(
+                "$PROPERTIES_LOCATION/host" to "localhost",
+                "/zookeeper/another/port" to "8080"
+            )
+        )
+
+        val unavailableClient = CuratorFrameworkFactory.newClient("127.0.0.1:1", RetryOneTime(100))
+        createSource(unavailableClient).use { source ->
+            val host = SourcedProperty(source, "host", String::class.java, OptionalDefaultValue.none())
+            assertEquals("localhost", host.get())
+
+            val port = SourcedProperty(source, "../another/port", String::class.java, OptionalDefaultValue.of("0"))
+            assertEquals("0", port.get())
+        }
+        unavailableClient.close()
+    }
+
+    @Test
+    fun `source notifies only about properties that differ from snapshot`() {
+        writeSnapshot(
+            mapOf(
+                "$PROPERTIES_LOCATION/same" to "value",
+                "$PROPERTIES_LOCATION/changed" to "old",
+                "$PROPERTIES_LOCATION/removed" to "value"
+            )
+        )
+        setServerProperty("$PROPERTIES_LOCATION/same", "value")
+        setServerProperty("$PROPERTIES_LOCATION/changed", "new")
+
+        createSource(zkTestingServer.client).use { source ->
+            val same = subscribe(source, "same")
+            val changed = subscribe(source, "changed")
+            val removed = subscribe(source, "removed")
+
+            await().atMost(10, TimeUnit.SECONDS).until {
+                changed.peekLast() == "new" && removed.peekLast() == "default"
+            }
+            assertEquals(listOf("value"), same.toList())
+        }
+    }
+
+    private fun createSource(client: CuratorFramework) =
+        ZkDynamicPropertySource(
+            client,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1),
+            ZkCacheMode.TREE_CACHE,
+            snapshotPath
+        )
+
+    private fun subscribe(source: ZkDynamicPropertySource, propertyName: String): LinkedBlockingDeque<String> {
+        val values = LinkedBlockingDeque<String>()
+        source.createSubscription(propertyName, String::class.java, OptionalDefaultValue.of("default"))
+            .setAndCallListener { values.add(it) }
+            .also { subscriptions.add(it) }
+        return values
+    }
+
+    private fun writeSnapshot(properties: Map<String, String>) {
+        MappedPropertySnapshotWriter(snapshotPath).use { it.write(properties) }
+    }
+
+    private fun setServerProperty(path: String, value: String) {
+        zkTestingServer.client
+            .create()
+            .creatingParentsIfNeeded()
+            .forPath(path, value.toByteArray(StandardCharsets.UTF_8))
+    }
+}
@@ -14,17 +14,22 @@ import java.time.Duration
 import java.time.temporal.ChronoUnit
 import java.util.concurrent.LinkedBlockingDeque
 import java.util.concurrent.TimeUnit
+import java.util.function.Consumer
 
 
-class ZkDynamicPropertySourceTest {
+open class ZkDynamicPropertySourceTest {
     companion object {
-        private const val TEST_PROP_KEY = "test_prop_key"
+        const val TEST_PROP_KEY = "test_prop_key"
         private const val TEST_PROP_KEY_1 = "test_prop_key_1"
-        private const val PROPERTIES_LOCATION = "/zookeeper/p"
+        const val PROPERTIES_LOCATION = "/zookeeper/p"
     }
 
-    private lateinit var zkTestingServer: ZKTestingServer
-    private lateinit var source: ZkDynamicPropertySource
+    protected open val cacheMode = ZkCacheMode.TREE_CACHE
+
+    protected open val pollingInterval: Duration = ZkDynamicPropertySource.DEFAULT_POLLING_INTERVAL
+
+    protected lateinit var zkTestingServer: ZKTestingServer
+    protected lateinit var source: ZkDynamicPropertySource
 
     @BeforeEach
     fun beforeEach() {
@@ -33,7 +38,9 @@ class ZkDynamicPropertySourceTest {
             zkTestingServer.client,
             PROPERTIES_LOCATION,
             MarshallerBuilder.createDefault(),
-            Duration.of(1, ChronoUnit.MINUTES)
+            Duration.of(1, ChronoUnit.MINUTES),
+            cacheMode,
+            pollingInterval = pollingInterval
         )
     }
 
@@ -78,6 +85,84 @@ class ZkDynamicPropertySourceTest {
         assertEquals("some Value 2", valueSlot.takeFirst())
     }
 
+    @Test
+    fun `compressed property value is decompressed`() {
+        val largeValue = "value ".repeat(10_000)
+        zkTestingServer.client
+            .create()
+            .creatingParentsIfNeeded()
+            .forPath(
+                "$PROPERTIES_LOCATION/$TEST_PROP_KEY",
+                ZkPropertyValueCodec.encode(largeValue, compression = ZkPropertyCompression.GZIP)
+            )
+
+        val valueSlot = LinkedBlockingDeque<String>()
+        val subscription = source.createSubscription(
+            TEST_PROP_KEY,
+            String::class.java,
+            OptionalDefaultValue.of("zzz")
+        ).setAndCallListener { value -> valueSlot.add(value) }
+
+        await().atMost(10, TimeUnit.SECONDS).until { valueSlot.peekLast() == largeValue }
+    }
+
+    @Test
+    fun `chunked property value is assembled and switched atomically`() {
+        val writer = ZkChunkedValueWriter(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            chunkSize = 1024,
+            compressionThreshold = Int.MAX_VALUE
+        )
+        val firstValue = (1..2000).joinToString(",") { "first-$it" }
+        val secondValue = (1..3000).joinToString(",") { "second-$it" }
+        writer.write(TEST_PROP_KEY, firstValue)
+
+        val valueSlot = LinkedBlockingDeque<String>()
+        val subscription = source.createSubscription(
+            TEST_PROP_KEY,
+            String::class.java,
+            OptionalDefaultValue.of("zzz")
+        ).setAndCallListener { value -> valueSlot.add(value) }
+        await().atMost(10, TimeUnit.SECONDS).until { valueSlot.peekLast() == firstValue }
+
+        writer.write(TEST_PROP_KEY, secondValue)
+        await().atMost(10, TimeUnit.SECONDS).until { valueSlot.peekLast() == secondValue }
+        assertTrue(valueSlot.all { it == "zzz" || it == firstValue || it == secondValue })
+
+        assertEquals(mapOf(TEST_PROP_KEY to secondValue), source.readAllProperties())
+        val manifest = ZkChunkManifest.parse(
+            zkTestingServer.client.data.forPath("$PROPERTIES_LOCATION/$TEST_PROP_KEY")
+        )
+        assertEquals(
+            listOf(manifest.versionNode()),
+            zkTestingServer.client.children.forPath(
+                "$PROPERTIES_LOCATION/${ZkChunkManifest.CHUNKS_NODE}/$TEST_PROP_KEY"
+            )
+        )
+    }
+
+    @Test
+    fun `property rewritten with the same value does not notify listener`() {
+        setServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "some Value")
+
+        val valueSlot = LinkedBlockingDeque<String>()
+
+        val subscription = source.createSubscription(
+            TEST_PROP_KEY,
+            String::class.java,
+            OptionalDefaultValue.of("zzz")
+        ).setAndCallListener { value -> valueSlot.add(value) }
+
+        assertEquals("some Value", valueSlot.removeFirst())
+
+        changeServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "some Value")
+        changeServerProperty("$PROPERTIES_LOCATION/$TEST_PROP_KEY", "some Value 2")
+
+        assertEquals("some Value 2", valueSlot.takeFirst())
+        assertTrue(valueSlot.isEmpty())
+    }
+
 
     @Test
     fun `start with default value and then listen for property creation and change`() {
@@ -139,6 +224,21 @@ class ZkDynamicPropertySourceTest {
         assertEquals("some Value 2", childProperties["propName2"])
     }
 
+    @Test
+    fun `read all nested properties with bounded parallelism and stream them`() {
+        (1..50).forEach { setServerProperty("$PROPERTIES_LOCATION/group-${it % 5}/prop-$it", "value-$it") }
+
+        val childProperties = source.readAllProperties(parallelism = 2, timeout = Duration.ofSeconds(30))
+        (1..50).forEach { assertEquals("value-$it", childProperties["group-${it % 5}/prop-$it"]) }
+
+        val streamedProperties = ArrayList<ZkProperty>()
+        source.readAllProperties(4, Duration.ofSeconds(30), Consumer { streamedProperties.add(it) })
+        val streamedProp = streamedProperties.single { it.name == "group-1/prop-1" }
+        assertEquals("value-1", streamedProp.value)
+        assertEquals(0, streamedProp.version)
+        assertEquals(childProperties.size, streamedProperties.size)
+    }
+
     @Test
     fun shouldNotFetchPropertiesIfNotPresent() {
         val allProperties = source.readAllProperties()
@@ -202,7 +302,9 @@ class ZkDynamicPropertySourceTest {
             zkTestingServer.createClient(),
             PROPERTIES_LOCATION,
             MarshallerBuilder.createDefault(),
-            Duration.of(1, ChronoUnit.MINUTES)
+            Duration.of(1, ChronoUnit.MINUTES),
+            cacheMode,
+            pollingInterval = pollingInterval
         )
 
         val subscriptions = generatedProperties.map {
@@ -218,11 +320,44 @@ class ZkDynamicPropertySourceTest {
         source.close()
     }
 
+    /**
+     * Notification listener of each property subscribes to the other one,
+     * properties "a" and "b" are notified by different threads of the dispatcher
+     */
+    @Test
+    fun `listeners subscribe to properties of other notification threads without deadlock`() {
+        setServerProperty("$PROPERTIES_LOCATION/a", "0")
+        setServerProperty("$PROPERTIES_LOCATION/b", "0")
+
+        fun subscribeNested(propertyName: String, otherPropertyName: String, values: LinkedBlockingDeque<String>) =
+            source.createSubscription(propertyName, String::class.java, OptionalDefaultValue.of("default"))
+                .setAndCallListener { value ->
+                    source.createSubscription(otherPropertyName, String::class.java, OptionalDefaultValue.of("default"))
+                        .setAndCallListener { }
+                        .close()
+                    values.add(value)
+                }
+
+        val aValues = LinkedBlockingDeque<String>()
+        val bValues = LinkedBlockingDeque<String>()
+        val aSubscription = subscribeNested("a", "b", aValues)
+        val bSubscription = subscribeNested("b", "a", bValues)
+
+        for (value in 1..50) {
+            changeServerProperty("$PROPERTIES_LOCATION/a", value.toString())
+            changeServerProperty("$PROPERTIES_LOCATION/b", value.toString())
+        }
+
+        await().atMost(10, TimeUnit.SECONDS).until { aValues.peekLast() == "50" && bValues.peekLast() == "50" }
+        aSubscription.close()
+        bSubscription.close()
+    }
+
     private fun generateProperties(count: Int): Map<String, String> {
         return (1..count).map { i -> Pair("prop-$i", "value-$i") }.toMap()
     }
 
-    private fun setServerProperty(propertyKey: String, value: String) {
+    protected fun setServerProperty(propertyKey: String, value: String) {
         val data = value.toByteArray(StandardCharsets.UTF_8)
         zkTestingServer.client
             .create()
@@ -232,11 +367,12 @@ class ZkDynamicPropertySourceTest {
         await().atMost(10, TimeUnit.SECONDS).until {
             zkTestingServer.client
                 .data
-                .forPath(propertyKey)!!.contentEquals(data)
+                .forPath(propertyKey)!!.contentEquals(data) &&
+                    source.isPropagated(propertyKey.removePrefix("$PROPERTIES_LOCATION/"), data)
         }
     }
 
-    private fun changeServerProperty(propertyKey: String, value: String) {
+    protected fun changeServerProperty(propertyKey: String, value: String) {
         zkTestingServer.client.setData().forPath(propertyKey, value.toByteArray(StandardCharsets.UTF_8))
     }
 
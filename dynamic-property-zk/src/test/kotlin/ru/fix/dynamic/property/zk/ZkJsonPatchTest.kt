@@ -0,0 +1,174 @@
+package ru.fix.dynamic.property.zk
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.time.Duration
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+class ZkJsonPatchTest {
+    companion object {
+        private const val PROPERTIES_LOCATION = "/zookeeper/p"
+        private val objectMapper = ObjectMapper()
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+    private lateinit var source: ZkDynamicPropertySource
+    private lateinit var writer: ZkJsonPatchWriter
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+        source = ZkDynamicPropertySource(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1)
+        )
+        writer = ZkJsonPatchWriter(zkTestingServer.client, PROPERTIES_LOCATION)
+    }
+
+    @AfterEach
+    fun afterEach() {
+        source.close()
+        zkTestingServer.close()
+    }
+
+    private fun json(text: String) = objectMapper.readTree(text)
+
+    private fun patch(document: String, patch: String) =
+        JsonPatch.apply(json(document), json(patch))
+
+    @Test
+    fun `patch operations are applied in order`() {
+        assertEquals(
+            json("""{"a": [1, 5, 3], "c": {"d": 1}, "e": {"d": 1}}"""),
+            patch(
+                """{"a": [1, 2], "b": "x", "c": {}}""",
+                """[
+                    {"op": "add", "path": "/a/-", "value": 3},
+                    {"op": "replace", "path": "/a/1", "value": 5},
+                    {"op": "remove", "path": "/b"},
+                    {"op": "add", "path": "/c/d", "value": 1},
+                    {"op": "copy", "from": "/c", "path": "/e"},
+                    {"op": "test", "path": "/e/d", "value": 1}
+                ]"""
+            )
+        )
+        assertEquals(
+            json("""{"b": {"a": 1}}"""),
+            patch("""{"a": 1, "b": {}}""", """[{"op": "move", "from": "/a", "path": "/b/a"}]""")
+        )
+        assertEquals(json("[1]"), patch("""{"a": 1}""", """[{"op": "replace", "path": "", "value": [1]}]"""))
+    }
+
+    @Test
+    fun `invalid patch is rejected`() {
+        assertThrows<IllegalArgumentException> {
+            patch("""{"a": 1}""", """[{"op": "test", "path": "/a", "value": 2}]""")
+        }
+        assertThrows<IllegalArgumentException> {
+            patch("""{"a": 1}""", """[{"op": "remove", "path": "/b"}]""")
+        }
+        assertThrows<IllegalArgumentException> {
+            patch("""{"a": [1]}""", """[{"op": "add", "path": "/a/5", "value": 2}]""")
+        }
+        assertThrows<IllegalArgumentException> {
+            patch("""{"a": {}}""", """[{"op": "move", "from": "/a", "path": "/a/b"}]""")
+        }
+        assertThrows<IllegalArgumentException> {
+            patch("""{"a": 1}""", """{"op": "remove", "path": "/a"}""")
+        }
+    }
+
+    @Test
+    fun `subscription receives patched document`() {
+        writer.write("routes", """{"routes": [{"weight": 1}, {"weight": 2}]}""")
+        val values = LinkedBlockingDeque<Map<*, *>>()
+        await().atMost(10, TimeUnit.SECONDS).until { source.readAllProperties().containsKey("routes") }
+        source.createSubscription("routes", Map::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { values.add(it) }
+        await().atMost(10, TimeUnit.SECONDS).until { values.isNotEmpty() }
+
+        writer.patch("routes", """[{"op": "replace", "path": "/routes/1/weight", "value": 5}]""")
+        writer.patch("routes", """[{"op": "add", "path": "/routes/-", "value": {"weight": 3}}]""")
+
+        val expected = objectMapper.readValue(
+            """{"routes": [{"weight": 1}, {"weight": 5}, {"weight": 3}]}""",
+            Map::class.java
+        )
+        await().atMost(10, TimeUnit.SECONDS).until { values.peekLast() == expected }
+        assertEquals(
+            json("""{"routes": [{"weight": 1}, {"weight": 5}, {"weight": 3}]}"""),
+            json(source.readAllProperties().getValue("routes"))
+        )
+    }
+
+    @Test
+    fun `patches are folded into new base when they outgrow rebase ratio`() {
+        val client = zkTestingServer.client
+        writer.write("numbers", """{"values": [1, 2, 3, 4, 5, 6, 7, 8]}""")
+        val basesPath = ZkJsonPatchLog.basesPath(PROPERTIES_LOCATION, "numbers")
+        val firstLog = ZkJsonPatchLog.parse(client.data.forPath("$PROPERTIES_LOCATION/numbers"))
+        assertEquals(listOf(ZkJsonPatchLog.baseNode(firstLog.baseVersion)), client.children.forPath(basesPath))
+
+        for (value in 9..20) {
+            writer.patch("numbers", """[{"op": "add", "path": "/values/-", "value": $value}]""")
+        }
+
+        val log = ZkJsonPatchLog.parse(client.data.forPath("$PROPERTIES_LOCATION/numbers"))
+        assertEquals(listOf(ZkJsonPatchLog.baseNode(log.baseVersion)), client.children.forPath(basesPath))
+        assertTrue(log.baseVersion > firstLog.baseVersion)
+        assertEquals(
+            log.patchIds.size,
+            client.children.forPath(ZkJsonPatchLog.basePath(PROPERTIES_LOCATION, "numbers", log.baseVersion)).size
+        )
+        assertEquals(
+            json("""{"values": [${(1..20).joinToString()}]}"""),
+            json(source.readAllProperties().getValue("numbers"))
+        )
+    }
+
+    @Test
+    fun `each patch is stored in its own node`() {
+        val client = zkTestingServer.client
+        writer.write("numbers", """{"values": [${(1..1000).joinToString()}]}""")
+        writer.patch("numbers", """[{"op": "replace", "path": "/values/0", "value": 0}]""")
+        writer.patch("numbers", """[{"op": "remove", "path": "/values/1"}]""")
+
+        val log = ZkJsonPatchLog.parse(client.data.forPath("$PROPERTIES_LOCATION/numbers"))
+        assertEquals(2, log.patchIds.size)
+        assertEquals(
+            json("""[{"op": "remove", "path": "/values/1"}]"""),
+            json(
+                ZkPropertyValueCodec.decode(
+                    client.data.forPath(
+                        ZkJsonPatchLog.patchPath(PROPERTIES_LOCATION, "numbers", log.baseVersion, log.patchIds[1])
+                    )
+                )
+            )
+        )
+        assertEquals(
+            json("""{"values": [0, ${(3..1000).joinToString()}]}"""),
+            json(source.readAllProperties().getValue("numbers"))
+        )
+    }
+
+    @Test
+    fun `patch of property that is not written by patch writer is rejected`() {
+        zkTestingServer.client.create().creatingParentsIfNeeded()
+            .forPath("$PROPERTIES_LOCATION/plain", "{}".toByteArray())
+        assertThrows<IllegalStateException> {
+            writer.patch("plain", """[{"op": "add", "path": "/a", "value": 1}]""")
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.fix.dynamic.property.zk
+
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ZkNotificationDispatcherTest {
+
+    /**
+     * "a" and "c" belong to the same shard of two, "b" belongs to another one
+     */
+    @Test
+    fun `slow listener does not delay other shards and queued notifications are coalesced`() {
+        val slowListenerReleased = CountDownLatch(1)
+        val delivered = Collections.synchronizedList(ArrayList<String>())
+
+        ZkNotificationDispatcher(2) { propertyName ->
+            if (propertyName == "a") {
+                slowListenerReleased.await()
+            }
+            delivered.add(propertyName)
+        }.use { dispatcher ->
+            dispatcher.dispatch("a")
+            dispatcher.dispatch("c")
+            dispatcher.dispatch("c")
+            dispatcher.dispatch("b")
+
+            await().atMost(10, TimeUnit.SECONDS).until { delivered.contains("b") }
+            assertEquals(listOf("b"), delivered.toList())
+
+            dispatcher.dispatch("c")
+            slowListenerReleased.countDown()
+
+            await().atMost(10, TimeUnit.SECONDS).until { delivered.size == 3 }
+            assertEquals(listOf("b", "a", "c"), delivered.toList())
+        }
+    }
+
+    @Test
+    fun `notification runs outside of property lock`() {
+        val lockHeld = Collections.synchronizedList(ArrayList<Boolean>())
+        lateinit var dispatcher: ZkNotificationDispatcher
+        dispatcher = ZkNotificationDispatcher(4) { propertyName ->
+            lockHeld.add(dispatcher.lockFor(propertyName).isHeldByCurrentThread)
+        }
+        dispatcher.use {
+            it.dispatch("property")
+            await().atMost(10, TimeUnit.SECONDS).until { lockHeld.isNotEmpty() }
+            assertEquals(listOf(false), lockHeld.toList())
+        }
+    }
+
+    @Test
+    fun `drained future completes after queued notifications are delivered`() {
+        val listenerReleased = CountDownLatch(1)
+        val delivered = Collections.synchronizedList(ArrayList<String>())
+
+        ZkNotificationDispatcher(2) { propertyName ->
+            listenerReleased.await()
+            delivered.add(propertyName)
+        }.use { dispatcher ->
+            dispatcher.dispatch("a")
+            dispatcher.dispatch("b")
+            val drained = dispatcher.whenDrained()
+            assertFalse(drained.isDone)
+
+            listenerReleased.countDown()
+            drained.get(10, TimeUnit.SECONDS)
+            assertEquals(setOf("a", "b"), delivered.toSet())
+        }
+    }
+}
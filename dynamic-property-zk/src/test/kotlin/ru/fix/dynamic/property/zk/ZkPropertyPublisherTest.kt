@@ -0,0 +1,154 @@
+package ru.fix.dynamic.property.zk
+
+import org.awaitility.Awaitility.await
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import ru.fix.dynamic.property.api.source.OptionalDefaultValue
+import ru.fix.dynamic.property.api.source.SourcedProperty
+import ru.fix.dynamic.property.jackson.MarshallerBuilder
+import ru.fix.zookeeper.testing.ZKTestingServer
+import java.time.Duration
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+class ZkPropertyPublisherTest {
+    companion object {
+        private const val PROPERTIES_LOCATION = "/zookeeper/p"
+    }
+
+    private lateinit var zkTestingServer: ZKTestingServer
+    private lateinit var source: ZkDynamicPropertySource
+    private lateinit var publisher: ZkPropertyPublisher
+
+    @BeforeEach
+    fun beforeEach() {
+        zkTestingServer = ZKTestingServer().start()
+        source = ZkDynamicPropertySource(
+            zkTestingServer.client,
+            PROPERTIES_LOCATION,
+            MarshallerBuilder.createDefault(),
+            Duration.ofMinutes(1)
+        )
+        publisher = ZkPropertyPublisher(source, MarshallerBuilder.createDefault())
+    }
+
+    @AfterEach
+    fun afterEach() {
+        source.close()
+        zkTestingServer.close()
+    }
+
+    @Test
+    fun `publish set of changes and await propagation to local cache`() {
+        val result = publisher.publish(
+            mapOf(
+                "timeout" to Duration.ofSeconds(5),
+                "group/threads" to 4,
+                "name" to "service"
+            )
+        )
+        assertEquals(setOf("timeout", "group/threads", "name"), result.changedProperties)
+        assertTrue(result.awaitPropagation(Duration.ofSeconds(10)))
+
+        assertEquals(
+            Duration.ofSeconds(5),
+            SourcedProperty(source, "timeout", Duration::class.java, OptionalDefaultValue.none()).get()
+        )
+        assertEquals(
+            4,
+            SourcedProperty(source, "group/threads", Integer::class.java, OptionalDefaultValue.none()).get().toInt()
+        )
+    }
+
+    @Test
+    fun `unchanged values are not written`() {
+        publisher.publish(mapOf("name" to "service", "obsolete" to "value"))
+        val versionBefore = zkTestingServer.client.checkExists().forPath("$PROPERTIES_LOCATION/name").version
+
+        val result = publisher.publish(mapOf("name" to "service", "obsolete" to null, "absent" to null))
+        assertEquals(setOf("obsolete"), result.changedProperties)
+        assertTrue(result.awaitPropagation(Duration.ofSeconds(10)))
+
+        assertEquals(
+            versionBefore,
+            zkTestingServer.client.checkExists().forPath("$PROPERTIES_LOCATION/name").version
+        )
+        assertEquals(
+            "default",
+            SourcedProperty(source, "obsolete", String::class.java, OptionalDefaultValue.of("default")).get()
+        )
+    }
+
+    @Test
+    fun `canary rollout keeps previous value until it is promoted to all instances`() {
+        publisher.publish(mapOf("pool.size" to 10)).awaitPropagation(Duration.ofSeconds(10))
+        val values = LinkedBlockingDeque<Int>()
+        source.createSubscription("pool.size", Integer::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { values.add(it.toInt()) }
+        assertEquals(listOf(10), values.toList())
+
+        // rollout does not reach any instance
+        assertTrue(
+            publisher.publish(mapOf("pool.size" to 20), ZkRolloutPolicy(toPercent = 0))
+                .awaitPropagation(Duration.ofSeconds(10))
+        )
+        Thread.sleep(500)
+        assertEquals(listOf(10), values.toList())
+
+        // the same value is promoted to the rest of instances
+        assertEquals(
+            setOf("pool.size"),
+            publisher.publish(mapOf("pool.size" to 20), ZkRolloutPolicy(fromPercent = 0, toPercent = 100))
+                .changedProperties
+        )
+        await().atMost(10, TimeUnit.SECONDS).until { values.peekLast() == 20 }
+        assertEquals(listOf(10, 20), values.toList())
+    }
+
+    @Test
+    fun `jittered rollout switches instance to new value within window`() {
+        val window = Duration.ofSeconds(3)
+        publisher.publish(mapOf("pool.size" to 10)).awaitPropagation(Duration.ofSeconds(10))
+        val values = LinkedBlockingDeque<Int>()
+        source.createSubscription("pool.size", Integer::class.java, OptionalDefaultValue.none())
+            .setAndCallListener { values.add(it.toInt()) }
+
+        val bucket = ZkRolloutPolicy.bucketOf(ZkDynamicPropertySource.defaultRolloutInstanceId(), "pool.size")
+        val expectedDelay = window.toMillis() * bucket / ZkRolloutPolicy.BUCKET_COUNT
+        val start = System.currentTimeMillis()
+        publisher.publish(mapOf("pool.size" to 20), ZkRolloutPolicy(window))
+
+        await().atMost(window.plusSeconds(10)).until { values.peekLast() == 20 }
+        assertTrue(System.currentTimeMillis() - start >= expectedDelay - 500)
+        assertEquals(listOf(10, 20), values.toList())
+    }
+
+    @Test
+    fun `reserved property names are rejected`() {
+        assertThrows<IllegalArgumentException> {
+            publisher.publish(mapOf(".chunks/name" to "value"))
+        }
+        assertEquals(null, zkTestingServer.client.checkExists().forPath("$PROPERTIES_LOCATION/.chunks"))
+    }
+
+    @Test
+    fun `chunked property and node with nested properties are not overwritten`() {
+        ZkChunkedValueWriter(zkTestingServer.client, PROPERTIES_LOCATION, chunkSize = 4).write("large", "large value")
+        publisher.publish(mapOf("group/threads" to 4))
+
+        assertThrows<IllegalArgumentException> { publisher.publish(mapOf("large" to "value")) }
+        assertThrows<IllegalArgumentException> { publisher.publish(mapOf("large" to null)) }
+        assertThrows<IllegalArgumentException> { publisher.publish(mapOf("group" to null)) }
+
+        assertTrue(
+            ZkPropertyValueCodec.isChunkManifest(
+                zkTestingServer.client.data.forPath("$PROPERTIES_LOCATION/large")
+            )
+        )
+        assertEquals(1, zkTestingServer.client.checkExists().forPath("$PROPERTIES_LOCATION/group").numChildren)
+    }
+}
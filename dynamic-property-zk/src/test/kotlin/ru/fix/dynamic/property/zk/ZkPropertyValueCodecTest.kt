@@ -0,0 +1,33 @@
+package ru.fix.dynamic.property.zk
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.nio.charset.StandardCharsets
+
+class ZkPropertyValueCodecTest {
+
+    private val largeValue = (1..5000).joinToString(prefix = "[", postfix = "]") { """{"route":"r$it","weight":1}""" }
+
+    @Test
+    fun `small value is stored as plain utf-8`() {
+        val encoded = ZkPropertyValueCodec.encode("значение")
+
+        assertArrayEquals("значение".toByteArray(StandardCharsets.UTF_8), encoded)
+        assertFalse(ZkPropertyValueCodec.isCompressed(encoded))
+        assertEquals("значение", ZkPropertyValueCodec.decode(encoded))
+    }
+
+    @Test
+    fun `large value is compressed above threshold`() {
+        ZkPropertyCompression.values().forEach { compression ->
+            val encoded = ZkPropertyValueCodec.encode(largeValue, 1024, compression)
+
+            assertTrue(ZkPropertyValueCodec.isCompressed(encoded))
+            assertTrue(encoded.size < largeValue.length / 4)
+            assertEquals(largeValue, ZkPropertyValueCodec.decode(encoded))
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.fix.dynamic.property.zk
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.time.Duration
+
+class ZkRolloutPolicyTest {
+
+    @Test
+    fun `apply time is spread over window between from and to percents`() {
+        val policy = ZkRolloutPolicy(window = Duration.ofSeconds(100), fromPercent = 10, toPercent = 60)
+
+        assertEquals(1_000L, policy.applyTime(1_000, 0))
+        assertEquals(1_000L, policy.applyTime(1_000, 999))
+        assertEquals(1_000L, policy.applyTime(1_000, 1_000))
+        assertEquals(51_000L, policy.applyTime(1_000, 3_500))
+        assertEquals(null, policy.applyTime(1_000, 6_000))
+        assertEquals(null, policy.applyTime(1_000, ZkRolloutPolicy.BUCKET_COUNT - 1))
+    }
+
+    @Test
+    fun `instance keeps its bucket and buckets are spread evenly`() {
+        assertEquals(
+            ZkRolloutPolicy.bucketOf("host-1", "pool.size"),
+            ZkRolloutPolicy.bucketOf("host-1", "pool.size")
+        )
+        val canaryInstances = (1..2000).count {
+            ZkRolloutPolicy.bucketOf("host-$it", "pool.size") < 10 * ZkRolloutPolicy.BUCKET_COUNT / 100
+        }
+        assertTrue(canaryInstances in 150..250, "$canaryInstances of 2000 instances are in 10% canary")
+    }
+
+    @Test
+    fun `invalid percents are rejected`() {
+        assertThrows<IllegalArgumentException> { ZkRolloutPolicy(fromPercent = 50, toPercent = 10) }
+        assertThrows<IllegalArgumentException> { ZkRolloutPolicy(toPercent = 101) }
+    }
+
+    @Test
+    fun `envelope keeps policy, previous and new value`() {
+        val policy = ZkRolloutPolicy(Duration.ofMinutes(5), 5, 50)
+        val envelope = ZkRolloutEnvelope(
+            policy,
+            ZkPropertyValueCodec.encode("old"),
+            ZkPropertyValueCodec.encode("new")
+        ).encode()
+        assertTrue(ZkPropertyValueCodec.isRolloutEnvelope(envelope))
+
+        val parsed = ZkRolloutEnvelope.parse(envelope)
+        assertEquals(policy, parsed.policy)
+        assertArrayEquals(ZkPropertyValueCodec.encode("old"), parsed.previousValue)
+        assertArrayEquals(ZkPropertyValueCodec.encode("new"), parsed.value)
+
+        val created = ZkRolloutEnvelope.parse(
+            ZkRolloutEnvelope(policy, null, ZkPropertyValueCodec.encode("new")).encode()
+        )
+        assertEquals(null, created.previousValue)
+    }
+}
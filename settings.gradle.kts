@@ -6,7 +6,9 @@ for (project in listOf(
     "dynamic-property-zk",
     "dynamic-property-spring",
     "dynamic-property-polling",
-    "dynamic-property-std-source"
+    "dynamic-property-std-source",
+    "dynamic-property-http",
+    "dynamic-property-jdbc"
 )) {
     include(project)
 }
\ No newline at end of file